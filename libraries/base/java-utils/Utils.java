@@ -307,17 +307,9 @@ public class Utils {
     }
 
     public static long _calloc(int size, int bytes) {
-        int        totalBytes = size * bytes;
-        long       address    = MemoryManager.allocateBuffer(totalBytes, true);
-        ByteBuffer buffer     = MemoryManager.getBoundedBuffer(address);
-        int        times      = totalBytes / 8;
-        int        remTimes   = totalBytes % 8;
-        while (times-- != 0) {
-            buffer.putLong(0);
-        }
-        while (remTimes-- != 0) {
-            buffer.put((byte) 0);
-        }
+        int  totalBytes = size * bytes;
+        long address    = MemoryManager.allocateBuffer(totalBytes, true);
+        MemoryManager.set(address, 0, totalBytes);
         return address;
     }
 
@@ -0,0 +1,60 @@
+package eta.runtime.apply;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.ContextState;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.ContextState.IntValue;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PAPBenchmark {
+
+    public static final class Add3 extends Function3 {
+        @Override
+        public Closure apply3(StgContext context, Closure p1, Closure p2, Closure p3) {
+            return new IntValue(((IntValue) p1).x + ((IntValue) p2).x
+                              + ((IntValue) p3).x);
+        }
+    }
+
+    private final Closure add3 = new Add3();
+    private final Closure x    = new IntValue(1);
+    private final Closure y    = new IntValue(2);
+    private final Closure z    = new IntValue(3);
+    private Closure pap;
+
+    @Setup
+    public void setup(ContextState state) {
+        pap = add3.apply2(state.context, x, y);
+    }
+
+    /* Builds a PAPSlow one argument at a time until it's saturated. */
+    @Benchmark
+    public Closure applyOneByOne(ContextState state) {
+        StgContext context = state.context;
+        return add3.apply1(context, x).apply1(context, y).apply1(context, z);
+    }
+
+    /* Saturates an existing PAPSlow. */
+    @Benchmark
+    public Closure applySaturating(ContextState state) {
+        return pap.apply1(state.context, z);
+    }
+}
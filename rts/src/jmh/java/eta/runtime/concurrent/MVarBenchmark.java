@@ -0,0 +1,81 @@
+package eta.runtime.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.ContextState;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.ContextState.IntValue;
+
+/* Round trips between the benchmark thread and an echo thread that runs on its
+   own Capability. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MVarBenchmark {
+
+    private static final Closure STOP  = new IntValue(-1);
+    private static final Closure VALUE = new IntValue(1);
+
+    private MVar ping;
+    private MVar pong;
+    private Thread echo;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(1);
+        ping = new MVar(null);
+        pong = new MVar(null);
+        echo = new Thread("mvar-echo") {
+                @Override
+                public void run() {
+                    /* Runs as a Worker Capability so that blocking on an MVar
+                       isn't mistaken for a deadlock. */
+                    Capability cap = Capability.getLocal(true);
+                    StgContext context = ContextState.enter(cap);
+                    ready.countDown();
+                    try {
+                        Closure val;
+                        while ((val = Concurrent.takeMVar(context, ping)) != STOP) {
+                            Concurrent.putMVar(context, pong, val);
+                        }
+                    } finally {
+                        cap.destroyWorker();
+                    }
+                }
+            };
+        echo.start();
+        ready.await();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        while (!ping.tryPut(STOP)) {
+            Thread.yield();
+        }
+        echo.join();
+    }
+
+    @Benchmark
+    public Closure pingPong(ContextState state) {
+        Concurrent.putMVar(state.context, ping, VALUE);
+        return Concurrent.takeMVar(state.context, pong);
+    }
+}
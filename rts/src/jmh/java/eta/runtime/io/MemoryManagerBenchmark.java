@@ -0,0 +1,61 @@
+package eta.runtime.io;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryManagerBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    /* A buffer for the accessor benchmarks. */
+    private static final int BUFFER_SIZE = 4096;
+    private long address;
+    private int offset;
+
+    @Setup
+    public void setup() {
+        address = MemoryManager.allocateBuffer(BUFFER_SIZE, direct);
+    }
+
+    @TearDown
+    public void tearDown() {
+        MemoryManager.free(address);
+    }
+
+    @Benchmark
+    public long allocateAndFree() {
+        long address = MemoryManager.allocateBuffer(size, direct);
+        MemoryManager.free(address);
+        return address;
+    }
+
+    @Benchmark
+    public int putAndGetInt() {
+        int off = offset;
+        offset = (off + 4) & (BUFFER_SIZE - 1);
+        MemoryManager.putInt(address + off, off);
+        return MemoryManager.getInt(address + off);
+    }
+}
@@ -0,0 +1,59 @@
+package eta.runtime.parallel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.ContextState;
+import eta.runtime.stg.StgContext;
+import eta.runtime.thunk.UpdatableThunk;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparkBenchmark {
+
+    public static final class Unevaluated extends UpdatableThunk {
+        @Override
+        public Closure thunkEnter(StgContext context) {
+            return null;
+        }
+    }
+
+    /* The number of sparks created before they're converted. */
+    @Param({"1", "64"})
+    public int batch;
+
+    /* Each thread creates a batch of sparks and then converts as many as it can
+       find, either from its own pool or by stealing. The sparks are pushed
+       without newSpark's idle loop, since the workers that it spawns would need
+       the base library to run them. */
+    @Benchmark
+    @Threads(4)
+    public int createAndConvert(ContextState state) {
+        Capability cap = state.cap;
+        for (int i = 0; i < batch; i++) {
+            cap.pushSpark(new Unevaluated());
+        }
+        int converted = 0;
+        while (converted < batch && Parallel.findSpark(cap) != null) {
+            converted++;
+        }
+        return converted;
+    }
+}
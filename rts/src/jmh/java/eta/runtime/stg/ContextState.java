@@ -0,0 +1,35 @@
+package eta.runtime.stg;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* Gives each benchmark thread its own Capability and a fresh TSO to run as, the
+   same way a thread that enters the runtime would get one. */
+@State(Scope.Thread)
+public class ContextState {
+    public Capability cap;
+    public StgContext context;
+
+    @Setup
+    public void setup() {
+        cap     = Capability.getLocal(false);
+        context = enter(cap);
+    }
+
+    /* Binds a fresh TSO to the Capability like the scheduler would. */
+    public static StgContext enter(Capability cap) {
+        final TSO tso = new TSO(null);
+        tso.cap = cap;
+        cap.context.reset(cap, tso);
+        return cap.context;
+    }
+
+    public static final class IntValue extends Value {
+        public final int x;
+
+        public IntValue(int x) {
+            this.x = x;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package eta.runtime.stm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.ContextState;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.Value;
+import eta.runtime.stg.ContextState.IntValue;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class STMBenchmark {
+
+    /* The transaction `modifyTVar' tvar (+1)`. */
+    public static final class Increment extends Value {
+        public TVar tvar;
+
+        @Override
+        public Closure applyV(StgContext context) {
+            IntValue val = (IntValue) STM.readTVar(context, tvar);
+            STM.writeTVar(context, tvar, new IntValue(val.x + 1));
+            return val;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        public final Increment increment = new Increment();
+
+        @Setup
+        public void setup() {
+            increment.tvar = new TVar(new IntValue(0));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        public TVar tvar;
+
+        @Setup
+        public void setup() {
+            tvar = new TVar(new IntValue(0));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SharedIncrement {
+        public final Increment increment = new Increment();
+
+        @Setup
+        public void setup(Shared shared) {
+            increment.tvar = shared.tvar;
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Closure uncontended(ContextState state, Local local) {
+        return STM.atomically(state.context, local.increment);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Closure contended(ContextState state, SharedIncrement shared) {
+        return STM.atomically(state.context, shared.increment);
+    }
+}
@@ -0,0 +1,57 @@
+package eta.runtime.thunk;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.ContextState;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.ContextState.IntValue;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThunkBenchmark {
+
+    private static final Closure VALUE = new IntValue(42);
+
+    public static final class ConstThunk extends UpdatableThunk {
+        @Override
+        public Closure thunkEnter(StgContext context) {
+            return VALUE;
+        }
+    }
+
+    private ConstThunk evaluated;
+
+    @Setup
+    public void setup(ContextState state) {
+        evaluated = new ConstThunk();
+        evaluated.evaluate(state.context);
+    }
+
+    /* Pushes an update frame, enters the thunk and updates it. */
+    @Benchmark
+    public Closure evaluateFresh(ContextState state) {
+        return new ConstThunk().evaluate(state.context);
+    }
+
+    /* Follows the indirection of an already updated thunk. */
+    @Benchmark
+    public Closure evaluateUpdated(ContextState state) {
+        return evaluated.evaluate(state.context);
+    }
+}
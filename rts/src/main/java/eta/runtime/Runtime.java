@@ -130,7 +130,8 @@ public class Runtime {
     }
 
     /* Parameter: maxLocalSparks (int)
-       The maximum capacity of the bounded Global Spark Queue.
+       The capacity of the work-stealing spark pool owned by each Capability.
+       Sparks that don't fit are discarded and counted as overflowed.
        */
     private static int maxLocalSparks;
 
@@ -144,6 +145,22 @@ public class Runtime {
         maxLocalSparks = newMaxLocalSparks;
     }
 
+    /* Parameter: localRunQueueSize (int)
+       The capacity of the work-stealing run queue owned by each Capability.
+       Threads that don't fit are pushed to the Global Run Queue instead.
+       */
+    private static int localRunQueueSize;
+
+    public static final String LOCAL_RUN_QUEUE_SIZE = "eta.rts.localRunQueueSize";
+
+    public static int getLocalRunQueueSize() {
+        return localRunQueueSize;
+    }
+
+    public static void setLocalRunQueueSize(int newLocalRunQueueSize) {
+        localRunQueueSize = newLocalRunQueueSize;
+    }
+
     /* Parameter: tailCallThreshold (int)
         Threshold for trampoline bouncing
      */
@@ -187,6 +204,98 @@ public class Runtime {
         keepCAFs = newKeepCAFs;
     }
 
+    /* Parameter: virtualThreads (boolean)
+       Run Worker Capabilities on virtual threads when the JDK supports them (21+)
+       so that blocking Java calls don't tie up OS threads. */
+    private static boolean virtualThreads;
+
+    public static final String VIRTUAL_THREADS = "eta.rts.virtualThreads";
+
+    public static boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public static void setVirtualThreads(boolean newVirtualThreads) {
+        virtualThreads = newVirtualThreads;
+    }
+
+    /* Parameter: unsafeMemoryAccess (boolean)
+       Read and write direct blocks of the MemoryManager through their native
+       addresses instead of going through the bounds-checked ByteBuffer API. Only
+       applies to blocks allocated after it's set. */
+    private static boolean unsafeMemoryAccess;
+
+    public static final String UNSAFE_MEMORY_ACCESS = "eta.rts.unsafeMemoryAccess";
+
+    public static boolean useUnsafeMemoryAccess() {
+        return unsafeMemoryAccess;
+    }
+
+    public static void setUnsafeMemoryAccess(boolean newUnsafeMemoryAccess) {
+        unsafeMemoryAccess = newUnsafeMemoryAccess;
+    }
+
+    /* Parameter: memoryManagerMBean (boolean)
+       Register the statistics of the MemoryManager as a JMX MBean under
+       eta.runtime:type=MemoryManager. */
+    private static boolean memoryManagerMBean;
+
+    public static final String MEMORY_MANAGER_MBEAN = "eta.rts.memoryManagerMBean";
+
+    public static boolean useMemoryManagerMBean() {
+        return memoryManagerMBean;
+    }
+
+    public static void setMemoryManagerMBean(boolean newMemoryManagerMBean) {
+        memoryManagerMBean = newMemoryManagerMBean;
+    }
+
+    /* Parameter: memoryStatsInterval (int)
+       The interval in milliseconds at which the statistics of the MemoryManager
+       are dumped to the debug output. 0 disables it. */
+    private static int memoryStatsInterval;
+
+    public static final String MEMORY_STATS_INTERVAL = "eta.rts.memoryStatsInterval";
+
+    public static int getMemoryStatsInterval() {
+        return memoryStatsInterval;
+    }
+
+    public static void setMemoryStatsInterval(int newMemoryStatsInterval) {
+        memoryStatsInterval = newMemoryStatsInterval;
+    }
+
+    /* Parameter: stm.contentionManager (String)
+       How a transaction that aborted because of a conflict waits before it runs
+       again: none (the default), backoff or karma. See ContentionManager. */
+    private static String stmContentionManager;
+
+    public static final String STM_CONTENTION_MANAGER = "eta.rts.stm.contentionManager";
+
+    public static String getSTMContentionManager() {
+        return stmContentionManager;
+    }
+
+    public static void setSTMContentionManager(String newSTMContentionManager) {
+        stmContentionManager = newSTMContentionManager;
+    }
+
+    /* Parameter: stm.serialAfterAborts (int)
+       The number of times a transaction can abort in a row before it runs in
+       serial mode, where other transactions wait for it to commit. 0 disables
+       serial mode. */
+    private static int stmSerialAfterAborts;
+
+    public static final String STM_SERIAL_AFTER_ABORTS = "eta.rts.stm.serialAfterAborts";
+
+    public static int getSTMSerialAfterAborts() {
+        return stmSerialAfterAborts;
+    }
+
+    public static void setSTMSerialAfterAborts(int newSTMSerialAfterAborts) {
+        stmSerialAfterAborts = newSTMSerialAfterAborts;
+    }
+
     /* Debug Parameters */
     private static boolean debugScheduler;
 
@@ -220,6 +329,16 @@ public class Runtime {
         return debugMemoryManager;
     }
 
+    /* Keeps bounds checks on the memory accesses that go through native
+       addresses. */
+    private static boolean debugMemoryBounds;
+
+    public static final String DEBUG_MEMORY_BOUNDS_PROPERTY = "eta.debug.memoryBounds";
+
+    public static boolean debugMemoryBounds() {
+        return debugMemoryBounds;
+    }
+
     private static boolean debugExceptions;
 
     public static final String DEBUG_EXCEPTIONS_PROPERTY = "eta.debug.exceptions";
@@ -312,14 +431,22 @@ public class Runtime {
         minWorkerCapabilityIdleTime = rto.getInt(MIN_WORKER_CAPABILITY_IDLE_TIME, 1000);
         gcOnWeakPtrFinalization = rto.getBoolean(GC_ON_WEAK_PTR_FINALIZATION, false);
         maxLocalSparks = rto.getInt(MAX_LOCAL_SPARKS, 4096);
+        localRunQueueSize = rto.getInt(LOCAL_RUN_QUEUE_SIZE, 256);
         tailCallThreshold = rto.getInt(TAIL_CALL_THRESHOLD, 1000);
         clearThunks = rto.getBoolean(CLEAR_THUNKS, false);
         keepCAFs = rto.getBoolean(KEEP_CAFS, false);
+        virtualThreads = rto.getBoolean(VIRTUAL_THREADS, false);
+        unsafeMemoryAccess = rto.getBoolean(UNSAFE_MEMORY_ACCESS, false);
+        memoryManagerMBean = rto.getBoolean(MEMORY_MANAGER_MBEAN, false);
+        memoryStatsInterval = rto.getInt(MEMORY_STATS_INTERVAL, 0);
+        stmContentionManager = rto.getString(STM_CONTENTION_MANAGER, "none");
+        stmSerialAfterAborts = rto.getInt(STM_SERIAL_AFTER_ABORTS, 0);
 
         debugScheduler = rto.getBoolean(DEBUG_SCHEDULER_PROPERTY, false);
         debugMVar = rto.getBoolean(DEBUG_MVAR_PROPERTY, false);
         debugSTM = rto.getBoolean(DEBUG_STM_PROPERTY, false);
         debugMemoryManager = rto.getBoolean(DEBUG_MEMORY_MANAGER_PROPERTY, false);
+        debugMemoryBounds = rto.getBoolean(DEBUG_MEMORY_BOUNDS_PROPERTY, false);
         debugExceptions = rto.getBoolean(DEBUG_EXCEPTIONS_PROPERTY, false);
         debugExceptionsVerbose = rto.getBoolean(DEBUG_EXCEPTIONSVERBOSE_PROPERTY, false);
         debugAsyncExceptions = rto.getBoolean(DEBUG_ASYNCEXCEPTIONS_PROPERTY, false);
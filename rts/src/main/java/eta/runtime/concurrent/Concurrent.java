@@ -4,19 +4,17 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Iterator;
-import java.util.ArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
-import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SelectableChannel;
-import java.nio.channels.ClosedChannelException;
 
 import eta.runtime.Runtime;
 import eta.runtime.stg.Stg;
@@ -60,22 +58,28 @@ public class Concurrent {
 
     /* MVar Operations */
 
+    /* When a blocking MVar operation can't complete immediately, the TSO is queued
+       on the MVar and the operation is completed on its behalf by the TSO that
+       makes the MVar available, which then signals it. The blocked TSO only has
+       to wait for its `handoff` field to change. */
+
     public static Closure takeMVar(StgContext context, MVar mvar) {
-        Capability cap = context.myCapability;
-        Closure val = mvar.tryTake();
         if (Runtime.debugMVar()) {
             debugMVar("takeMVar start: " + mvar.hashCode());
         }
+        TSO tso = context.currentTSO;
+        Closure val = mvar.takeOrQueue(tso);
         if (val == null) {
-            TSO tso = context.currentTSO;
-            tso.whyBlocked = BlockedOnMVar;
-            tso.blockInfo  = mvar;
+            Capability cap = context.myCapability;
             try {
-                do {
+                while ((val = tso.handoff) == null) {
                     cap.blockedLoop();
-                    val = mvar.tryTake();
-                } while (val == null);
+                }
             } finally {
+                if (val == null) {
+                    mvar.cancelTake(tso);
+                }
+                tso.handoff    = null;
                 tso.whyBlocked = NotBlocked;
                 tso.blockInfo  = null;
             }
@@ -90,18 +94,19 @@ public class Concurrent {
         if (Runtime.debugMVar()) {
             debugMVar("readMVar start: " + mvar.hashCode());
         }
-        Capability cap = context.myCapability;
-        Closure val = mvar.tryRead();
+        TSO tso = context.currentTSO;
+        Closure val = mvar.readOrQueue(tso);
         if (val == null) {
-            TSO tso = context.currentTSO;
-            tso.whyBlocked = BlockedOnMVarRead;
-            tso.blockInfo  = mvar;
+            Capability cap = context.myCapability;
             try {
-                do {
+                while ((val = tso.handoff) == null) {
                     cap.blockedLoop();
-                    val = mvar.tryRead();
-                } while (val == null);
+                }
             } finally {
+                if (val == null) {
+                    mvar.cancel(tso);
+                }
+                tso.handoff    = null;
                 tso.whyBlocked = NotBlocked;
                 tso.blockInfo  = null;
             }
@@ -116,20 +121,22 @@ public class Concurrent {
         if (Runtime.debugMVar()) {
             debugMVar("putMVar start: " + mvar.hashCode() + " " + val.hashCode());
         }
-        Capability cap = context.myCapability;
-        boolean success = mvar.tryPut(val);
-        if (!success) {
-            TSO tso = context.currentTSO;
-            tso.whyBlocked = BlockedOnMVar;
-            tso.blockInfo  = mvar;
+        TSO tso = context.currentTSO;
+        if (!mvar.putOrQueue(tso, val)) {
+            Capability cap = context.myCapability;
+            boolean success = false;
             try {
-                do {
+                while (tso.handoff != null) {
                     cap.blockedLoop();
-                    success = mvar.tryPut(val);
-                } while (!success);
+                }
+                success = true;
             } finally {
-                tso.blockInfo  = null;
+                if (!success) {
+                    mvar.cancel(tso);
+                }
+                tso.handoff    = null;
                 tso.whyBlocked = NotBlocked;
+                tso.blockInfo  = null;
             }
         }
         if (Runtime.debugMVar()) {
@@ -139,12 +146,12 @@ public class Concurrent {
 
     public static Closure tryTakeMVar(StgContext context, MVar mvar) {
         Closure value = mvar.tryTake();
-        context.I1 = (value == null)? 0 : 1;
+        context.I1 = (value == null)? 0: 1;
         return value;
     }
 
     public static int tryPutMVar(StgContext context, MVar mvar, Closure val) {
-        return mvar.tryPut(val)? 1 : 0;
+        return mvar.tryPut(val)? 1: 0;
     }
 
     public static Closure tryReadMVar(StgContext context, MVar mvar) {
@@ -158,7 +165,7 @@ public class Concurrent {
         TSO currentTSO = context.currentTSO;
         TSO tso = Runtime.createIOThread(closure);
         tso.addFlags(currentTSO.andFlags(TSO_BLOCKEX | TSO_INTERRUPTIBLE));
-        pushToGlobalRunQueue(tso);
+        cap.pushToSharedRunQueue(tso);
         cap.idleLoop(false);
         return tso;
     }
@@ -241,7 +248,24 @@ public class Concurrent {
         }
     }
 
+    /* Futures that support completion callbacks wake up their waiting TSO as soon
+       as they complete. The rest are registered in futureMap and polled from the
+       idle loop. */
+    public static final boolean futureCallbacksSupported;
+
+    static {
+        boolean supported;
+        try {
+            Class.forName("java.util.concurrent.CompletableFuture");
+            supported = true;
+        } catch (ClassNotFoundException e) {
+            supported = false;
+        }
+        futureCallbacksSupported = supported;
+    }
+
     public static void checkForCompletedFutures(Capability cap) {
+        if (futureMap.isEmpty()) return;
         /* Only one thread at a time should check the futures. */
         if (futureMapLock.compareAndSet(false, true)) {
             try {
@@ -252,23 +276,7 @@ public class Concurrent {
                     TSO                    tso    = entry.getValue();
                     if (future.isDone()) {
                         it.remove();
-                        Object    result    = null;
-                        java.lang.Exception exception = null;
-                        do {
-                            try {
-                                result    = future.get();
-                            } catch (CancellationException e) {
-                                exception = e;
-                            } catch (ExecutionException e) {
-                                exception = e;
-                            } catch (InterruptedException e) {
-                                /* TODO: Is this the right behavior? */
-                                continue;
-                            }
-                            break;
-                        } while (true);
-                        tso.blockInfo = new FutureResult(result, exception);
-                        cap.tryWakeupThread(tso);
+                        tso.signal();
                     }
                 }
             } finally {
@@ -278,88 +286,115 @@ public class Concurrent {
     }
 
     public static Closure threadWaitFuture(StgContext context, Future future) {
-        Capability cap = context.myCapability;
-        TSO tso        = context.currentTSO;
-        tso.whyBlocked = BlockedOnFuture;
-        tso.blockInfo  = future;
-        do {
-            if (futureMap.get(future) == null) {
-                futureMap.put(future, tso);
+        if (!future.isDone()) {
+            Capability cap = context.myCapability;
+            TSO tso        = context.currentTSO;
+            tso.whyBlocked = BlockedOnFuture;
+            tso.blockInfo  = future;
+            final AtomicReference<TSO> waiter = futureCallbacksSupported?
+                FutureCallbacks.onComplete(future, tso) : null;
+            if (waiter == null) {
+                futureMap.putIfAbsent(future, tso);
+            }
+            try {
+                while (!future.isDone()) {
+                    cap.blockedLoop();
+                }
+            } finally {
+                if (waiter == null) {
+                    futureMap.remove(future, tso);
+                } else {
+                    waiter.set(null);
+                }
+                tso.whyBlocked = NotBlocked;
+                tso.blockInfo  = null;
             }
-            cap.blockedLoop();
-        } while (!future.isDone());
-        Object exception = null;
-        Object result    = null;
-        if (tso.blockInfo != null) {
-            FutureResult futureResult = (FutureResult) tso.blockInfo;
-            exception = futureResult.exception;
-            result    = futureResult.result;
-            tso.blockInfo = null;
         }
-        context.O1 = exception;
-        context.O2 = result;
+        FutureResult futureResult = getFutureResult(future);
+        context.O1 = futureResult.exception;
+        context.O2 = futureResult.result;
         return null;
     }
 
-    /* Managing Scalable I/O */
-
-    public static Selector globalSelector;
-
-    static {
-        try {
-            globalSelector = Selector.open();
-        } catch (IOException e) {
-            globalSelector = null;
-        }
+    /* The future must be done. */
+    public static FutureResult getFutureResult(Future future) {
+        Object    result    = null;
+        java.lang.Exception exception = null;
+        do {
+            try {
+                result    = future.get();
+            } catch (CancellationException e) {
+                exception = e;
+            } catch (ExecutionException e) {
+                exception = e;
+            } catch (InterruptedException e) {
+                /* TODO: Is this the right behavior? */
+                continue;
+            }
+            break;
+        } while (true);
+        return new FutureResult(result, exception);
     }
-    public static AtomicBoolean selectorLock = new AtomicBoolean();
+
+    /* Managing Scalable I/O */
 
     public static void threadWaitIO(StgContext context, Channel channel, int ops) {
-        try {
-            final boolean debug = Runtime.debugIO();
-            if (globalSelector == null) {
-                if (debug) {
-                    debugIO("Your platform does not support non-blocking IO.");
-                }
-                return;
-            }
-            if (!(channel instanceof SelectableChannel)) {
-                if (debug) {
-                    debugIO("Non-selectable channel " + channel + " sent to threadWaitIO#.");
-                }
-                return;
-            }
-            final Capability cap = context.myCapability;
-            final TSO tso = context.currentTSO;
-            final SelectableChannel selectChannel = (SelectableChannel) channel;
-            final SelectionKey selectKey = selectChannel.register(globalSelector, ops, tso);
-            WhyBlocked blocked;
-            switch (ops) {
-                case SelectionKey.OP_READ:
-                    blocked = BlockedOnRead;
-                    break;
-                case SelectionKey.OP_WRITE:
-                    blocked = BlockedOnWrite;
-                    break;
-                case SelectionKey.OP_CONNECT:
-                    blocked = BlockedOnConnect;
-                    break;
-                case SelectionKey.OP_ACCEPT:
-                    blocked = BlockedOnAccept;
-                    break;
-                default:
-                    blocked = BlockedOnIO;
-                    break;
+        final boolean debug = Runtime.debugIO();
+        if (!IOManager.supported()) {
+            if (debug) {
+                debugIO("Your platform does not support non-blocking IO.");
             }
+            return;
+        }
+        if (!(channel instanceof SelectableChannel)) {
             if (debug) {
-                debugIO("Registered " + channel + " for " + tso + " and blocked on " + blocked);
+                debugIO("Non-selectable channel " + channel + " sent to threadWaitIO#.");
             }
-            tso.whyBlocked = blocked;
-            tso.blockInfo  = selectKey;
-            do {
+            return;
+        }
+        final Capability cap = context.myCapability;
+        final TSO tso = context.currentTSO;
+        final IOManager.Registration r =
+            new IOManager.Registration((SelectableChannel) channel, ops, tso);
+        WhyBlocked blocked;
+        switch (ops) {
+            case SelectionKey.OP_READ:
+                blocked = BlockedOnRead;
+                break;
+            case SelectionKey.OP_WRITE:
+                blocked = BlockedOnWrite;
+                break;
+            case SelectionKey.OP_CONNECT:
+                blocked = BlockedOnConnect;
+                break;
+            case SelectionKey.OP_ACCEPT:
+                blocked = BlockedOnAccept;
+                break;
+            default:
+                blocked = BlockedOnIO;
+                break;
+        }
+        if (debug) {
+            debugIO("Waiting on " + channel + " for " + tso + " and blocked on " + blocked);
+        }
+        tso.whyBlocked = blocked;
+        tso.blockInfo  = r;
+        IOManager.register(r);
+        try {
+            while (!r.isDone()) {
                 cap.blockedLoop();
-            } while (selectKey.isValid());
-        } catch (ClosedChannelException e) {
+            }
+        } finally {
+            if (!r.isDone()) {
+                IOManager.cancel(r);
+            }
+            tso.whyBlocked = NotBlocked;
+            tso.blockInfo  = null;
+        }
+        final java.lang.Exception e = r.getException();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e != null) {
             throw new RuntimeException("threadWaitIO: ClosedChannelException", e);
         }
     }
@@ -380,48 +415,6 @@ public class Concurrent {
         threadWaitIO(context, (Channel) o, SelectionKey.OP_ACCEPT);
     }
 
-    public static void checkForReadyIO(Capability cap) {
-        if (globalSelector.keys().size() > 0) {
-            if (selectorLock.compareAndSet(false, true)) {
-                try {
-                    int selectedKeys = globalSelector.selectNow();
-                    ArrayList<TSO> tsoList = new ArrayList<TSO>();
-                    while (selectedKeys > 0) {
-                        Iterator<SelectionKey> it = globalSelector.selectedKeys().iterator();
-                        while (it.hasNext()) {
-                            SelectionKey key = it.next();
-                            if (key.isValid() && ((key.readyOps() & key.interestOps()) != 0)) {
-                                TSO tso = (TSO) key.attachment();
-                                key.cancel();
-                                tsoList.add(tso);
-                            }
-                            it.remove();
-                        }
-                        selectedKeys = globalSelector.selectNow();
-                    }
-                    final boolean debug = Runtime.debugIO();
-                    for (TSO tso: tsoList) {
-                        if(tso.cap == null) {
-                            if (debug) {
-                                debugIO("Pushing " + tso + " to the global run queue");
-                            }
-                            pushToGlobalRunQueue(tso);
-                        } else {
-                            if (debug) {
-                                debugIO("Waking up " + tso);
-                            }
-                            cap.tryWakeupThread(tso);
-                        }
-                    }
-                } catch (IOException ioe) {
-                    throw new RuntimeException("checkForReadyIO: Exception", ioe);
-                } finally {
-                    selectorLock.set(false);
-                }
-            }
-        }
-    }
-
     public static int forkOS_createThread(int stablePtr) {
         try {
             new OSThread(stablePtr).start();
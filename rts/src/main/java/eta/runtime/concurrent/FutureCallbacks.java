@@ -0,0 +1,44 @@
+package eta.runtime.concurrent;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import eta.runtime.stg.TSO;
+
+/* Completion callbacks for the futures that support them. This class refers to
+   JDK 8 APIs, so it must only be used after checking
+   Concurrent.futureCallbacksSupported. */
+public class FutureCallbacks {
+
+    /* Registers a callback that signals the TSO when the future completes.
+       Returns null if the future doesn't support completion callbacks, or else
+       the waiter, which must be cleared with set(null) once the TSO stops waiting.
+       A CompletableFuture can't drop a callback, so this is what keeps one that
+       outlives an interrupted wait from holding on to the TSO. */
+    public static AtomicReference<TSO> onComplete(Future<?> future, TSO tso) {
+        if (future instanceof CompletableFuture) {
+            final Waiter waiter = new Waiter(tso);
+            ((CompletableFuture<?>) future).whenComplete(waiter);
+            return waiter;
+        }
+        return null;
+    }
+
+    private static final class Waiter extends AtomicReference<TSO>
+        implements BiConsumer<Object, Throwable> {
+
+        Waiter(TSO tso) {
+            super(tso);
+        }
+
+        @Override
+        public void accept(Object result, Throwable exception) {
+            final TSO tso = getAndSet(null);
+            if (tso != null) {
+                tso.signal();
+            }
+        }
+    }
+}
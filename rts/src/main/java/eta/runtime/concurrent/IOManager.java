@@ -0,0 +1,307 @@
+package eta.runtime.concurrent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.TSO;
+import static eta.runtime.RuntimeLogging.*;
+
+/* The I/O Manager
+   A single daemon thread that blocks in Selector.select() on behalf of all the
+   TSOs that are waiting for I/O. Registrations are handed over through a queue
+   and a wakeup() since a Selector can't be registered with while another thread
+   is selecting on it. When a channel becomes ready, the waiting TSO is signalled
+   directly so its Capability resumes it right away.
+
+   Each channel keeps a single SelectionKey for its whole lifetime. Only its
+   interest set changes between waits and it's cancelled when the channel is
+   closed. */
+public class IOManager extends Thread {
+
+    public static final Selector selector;
+
+    static {
+        Selector s;
+        try {
+            s = Selector.open();
+        } catch (IOException e) {
+            s = null;
+        }
+        selector = s;
+    }
+
+    private static final Queue<Registration> pendingRegistrations
+        = new ConcurrentLinkedQueue<Registration>();
+
+    private static volatile IOManager ioManager;
+
+    /* A request from a TSO to wait until a channel is ready for `ops`. */
+    public static class Registration {
+        public final SelectableChannel channel;
+        public final int ops;
+        public final TSO tso;
+        private volatile boolean done;
+        private volatile boolean cancelled;
+        private volatile Exception exception;
+
+        public Registration(SelectableChannel channel, int ops, TSO tso) {
+            this.channel = channel;
+            this.ops     = ops;
+            this.tso     = tso;
+        }
+
+        /* A channel that's closed while waiting will never be selected. */
+        public final boolean isDone() {
+            return done || !channel.isOpen();
+        }
+
+        /* Either a ClosedChannelException or the RuntimeException that registering
+           the channel failed with. */
+        public final Exception getException() {
+            return exception;
+        }
+
+        /* Called by the I/O Manager thread only. */
+        private final void complete() {
+            done = true;
+            tso.signal();
+        }
+
+        private final void fail(Exception e) {
+            exception = e;
+            complete();
+        }
+    }
+
+    public static boolean supported() {
+        return selector != null;
+    }
+
+    /* Queues the registration and returns immediately. The caller should wait
+       until isDone() is true. */
+    public static void register(Registration r) {
+        ensureStarted();
+        pendingRegistrations.offer(r);
+        selector.wakeup();
+    }
+
+    /* Called when the waiting TSO gives up, typically because of an asynchronous
+       exception. */
+    public static void cancel(Registration r) {
+        r.cancelled = true;
+        pendingRegistrations.offer(r);
+        selector.wakeup();
+    }
+
+    private static void ensureStarted() {
+        if (ioManager == null) {
+            synchronized (IOManager.class) {
+                if (ioManager == null) {
+                    IOManager t = new IOManager();
+                    t.start();
+                    ioManager = t;
+                }
+            }
+        }
+    }
+
+    private IOManager() {
+        super("eta-io-manager");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        final boolean debug = Runtime.debugIO();
+        boolean flushCancelled = false;
+        for (;;) {
+            try {
+                if (flushCancelled) {
+                    /* Deregisters the keys cancelled in the previous round so that
+                       their channels can be registered again. */
+                    selector.selectNow();
+                    flushCancelled = false;
+                } else {
+                    selector.select();
+                }
+                flushCancelled  = processRegistrations(debug);
+                flushCancelled |= processReadyKeys(debug);
+            } catch (IOException e) {
+                if (debug) {
+                    debugIO("I/O Manager: select() failed with " + e);
+                }
+            } catch (java.lang.Exception e) {
+                if (debug) {
+                    debugIO("I/O Manager: unexpected " + e);
+                }
+            }
+        }
+    }
+
+    /* Returns true if a registration has to be retried after the cancelled keys
+       are flushed. */
+    private boolean processRegistrations(boolean debug) {
+        boolean retry = false;
+        final int n = pendingRegistrations.size();
+        for (int i = 0; i < n; i++) {
+            final Registration r = pendingRegistrations.poll();
+            if (r == null) break;
+            final SelectionKey key = r.channel.keyFor(selector);
+            if (r.cancelled) {
+                if (key != null && key.isValid()) {
+                    final Waiters waiters = (Waiters) key.attachment();
+                    waiters.remove(r);
+                    try {
+                        key.interestOps(waiters.ops);
+                    } catch (CancelledKeyException e) {
+                        retry |= keyCancelled(key, debug);
+                    }
+                }
+                continue;
+            }
+            try {
+                if (key == null) {
+                    r.channel.register(selector, r.ops, new Waiters(r));
+                } else {
+                    final Waiters waiters = (Waiters) key.attachment();
+                    waiters.add(r);
+                    key.interestOps(waiters.ops);
+                }
+                if (debug) {
+                    debugIO("Registered " + r.channel + " for " + r.tso);
+                }
+            } catch (CancelledKeyException e) {
+                /* The channel was closed or its key is yet to be flushed. */
+                if (key != null) {
+                    retry |= keyCancelled(key, debug);
+                } else {
+                    retry |= retryOrFail(r);
+                }
+            } catch (ClosedChannelException e) {
+                r.fail(e);
+            } catch (RuntimeException e) {
+                /* E.g. a channel in blocking mode or ops that it doesn't support. The
+                   waiting TSO rethrows it. */
+                if (key != null && key.isValid()) {
+                    final Waiters waiters = (Waiters) key.attachment();
+                    waiters.remove(r);
+                }
+                r.fail(e);
+            }
+        }
+        return retry;
+    }
+
+    /* Returns true if a registration has to be retried after the cancelled keys
+       are flushed. */
+    private boolean processReadyKeys(boolean debug) {
+        boolean retry = false;
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            final SelectionKey key = it.next();
+            it.remove();
+            try {
+                if (key.isValid()) {
+                    final Waiters waiters = (Waiters) key.attachment();
+                    final int readyOps = key.readyOps() & waiters.ops;
+                    if (readyOps != 0) {
+                        waiters.wakeup(readyOps, debug);
+                        key.interestOps(waiters.ops);
+                    }
+                }
+            } catch (CancelledKeyException e) {
+                retry |= keyCancelled(key, debug);
+            }
+        }
+        return retry;
+    }
+
+    /* Called when a key turns out to be cancelled, typically because its channel
+       was closed concurrently. None of its waiters would ever be selected, so
+       they're failed, or registered again once the key is flushed if their
+       channel is still open. Returns true if any have to be retried. */
+    private boolean keyCancelled(SelectionKey key, boolean debug) {
+        if (debug) {
+            debugIO("The key of " + key.channel() + " was cancelled");
+        }
+        boolean retry = false;
+        for (Registration r: ((Waiters) key.attachment()).removeAll()) {
+            retry |= retryOrFail(r);
+        }
+        return retry;
+    }
+
+    private boolean retryOrFail(Registration r) {
+        if (r.channel.isOpen()) {
+            pendingRegistrations.offer(r);
+            return true;
+        } else {
+            r.fail(new ClosedChannelException());
+            return false;
+        }
+    }
+
+    /* The TSOs that are waiting on a given channel, attached to its key. Readers
+       and writers can wait on the same channel concurrently. Only accessed by the
+       I/O Manager thread. */
+    private static class Waiters {
+        private final ArrayList<Registration> registrations
+            = new ArrayList<Registration>(2);
+        public int ops;
+
+        public Waiters(Registration r) {
+            add(r);
+        }
+
+        public void add(Registration r) {
+            registrations.add(r);
+            ops |= r.ops;
+        }
+
+        public void remove(Registration r) {
+            if (registrations.remove(r)) {
+                recomputeOps();
+            }
+        }
+
+        public ArrayList<Registration> removeAll() {
+            final ArrayList<Registration> removed
+                = new ArrayList<Registration>(registrations);
+            registrations.clear();
+            ops = 0;
+            return removed;
+        }
+
+        public void wakeup(int readyOps, boolean debug) {
+            final Iterator<Registration> it = registrations.iterator();
+            while (it.hasNext()) {
+                final Registration r = it.next();
+                if ((r.ops & readyOps) != 0) {
+                    it.remove();
+                    if (debug) {
+                        debugIO("Waking up " + r.tso);
+                    }
+                    r.complete();
+                }
+            }
+            recomputeOps();
+        }
+
+        private void recomputeOps() {
+            int newOps = 0;
+            for (Registration r: registrations) {
+                newOps |= r.ops;
+            }
+            ops = newOps;
+        }
+    }
+}
@@ -2,17 +2,25 @@ package eta.runtime.concurrent;
 
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+import eta.runtime.Runtime;
 import eta.runtime.stg.TSO;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.Value;
 import eta.runtime.util.UnsafeUtil;
 import static eta.runtime.util.UnsafeUtil.UNSAFE;
+import static eta.runtime.RuntimeLogging.debugMVar;
+import static eta.runtime.stg.TSO.WhyBlocked;
+import static eta.runtime.stg.TSO.WhyBlocked.*;
 
 public class MVar extends Value {
     public volatile Closure value;
+    /* The queue of blocked TSOs, guarded by `lock`. */
     public volatile TSO top;
+    private TSO bottom;
+    private volatile int lock;
 
     public MVar(Closure value) {
         this.value = value;
@@ -24,56 +32,237 @@ public class MVar extends Value {
         return "MVar@" + hashCode() + "[" + ((val == null)? "_" : val.toString()) + "]";
     }
 
+    /* Non-blocking operations */
+
     public Closure tryTake() {
-        Closure val = value;
-        if (val != null && casValue(val, null)) {
-            return val;
+        if (value == null) return null;
+        lock();
+        try {
+            return takeLocked();
+        } finally {
+            unlock();
         }
-        return null;
     }
 
     public boolean tryPut(Closure closure) {
-        if (value == null && casValue(null, closure)) {
-            return true;
+        if (value != null) return false;
+        lock();
+        try {
+            return putLocked(closure);
+        } finally {
+            unlock();
         }
-        return false;
     }
 
     public Closure tryRead() {
         return value;
     }
 
-    public final void registerListener(TSO tso) {
-        tso.link = TSO.TRANSIENT_LINK;
-        for (;;) {
-            TSO oldTop = top;
-            if (casTop(oldTop, tso)) {
-                /* TRANSIENT_LINK forms a synchronization point.
-                   When this cas succeeds, there's a narrow window
-                   where the cas from the getListeners() can happen
-                   and the client can try to traverse the listeners
-                   queue. Thus, a client is expected to check for link
-                   values of TRANSIENT_LINK before terminating a traversal. */
-                tso.link = oldTop;
-                return;
+    /* Blocking operations
+       If the operation can't be completed right away, the TSO is queued and the
+       operation will be completed on its behalf by whichever TSO makes the MVar
+       available. The TSO should wait until `handoff` changes, see
+       Concurrent.takeMVar/readMVar/putMVar. */
+
+    /* Returns null if the TSO was queued. */
+    public final Closure takeOrQueue(TSO tso) {
+        lock();
+        try {
+            Closure val = takeLocked();
+            if (val == null) {
+                tso.handoff = null;
+                registerListener(tso, BlockedOnMVar);
+            }
+            return val;
+        } finally {
+            unlock();
+        }
+    }
+
+    /* Returns null if the TSO was queued. */
+    public final Closure readOrQueue(TSO tso) {
+        Closure val = value;
+        if (val != null) return val;
+        lock();
+        try {
+            val = value;
+            if (val == null) {
+                tso.handoff = null;
+                registerListener(tso, BlockedOnMVarRead);
+            }
+            return val;
+        } finally {
+            unlock();
+        }
+    }
+
+    /* Returns false if the TSO was queued. */
+    public final boolean putOrQueue(TSO tso, Closure val) {
+        lock();
+        try {
+            boolean success = putLocked(val);
+            if (!success) {
+                tso.handoff = val;
+                registerListener(tso, BlockedOnMVar);
             }
+            return success;
+        } finally {
+            unlock();
         }
     }
 
-    public final TSO getListeners() {
-        for (;;) {
-            TSO oldTop = top;
-            if (oldTop == null) {
-                return null;
-            } else if (casTop(oldTop, null)) {
-                return oldTop;
+    /* Called when a blocked taker gives up waiting, typically because of an
+       asynchronous exception. If a value was already handed off to it, the value
+       is given back so that it isn't lost. */
+    public final void cancelTake(TSO tso) {
+        lock();
+        try {
+            if (!removeListener(tso)) {
+                final Closure val = tso.handoff;
+                tso.handoff = null;
+                if (val != null && !putLocked(val)) {
+                    /* The MVar was refilled in the meantime. The value that was
+                       handed off was put first, so it goes back into the MVar and
+                       the newer one is queued ahead of the blocked putters. */
+                    final TSO putter = new TSO(null);
+                    putter.handoff = value;
+                    value = val;
+                    pushListener(putter, BlockedOnMVar);
+                    if (Runtime.debugMVar()) {
+                        debugMVar("cancelTake: " + hashCode() + " was refilled, requeueing "
+                                  + putter.handoff.hashCode());
+                    }
+                }
             }
+        } finally {
+            unlock();
         }
     }
 
+    /* Called when a blocked reader or putter gives up waiting. */
+    public final void cancel(TSO tso) {
+        lock();
+        try {
+            removeListener(tso);
+        } finally {
+            unlock();
+        }
+    }
+
+    /* The lock must be held for all the methods below. */
+
+    private final Closure takeLocked() {
+        final Closure val = value;
+        if (val != null) {
+            /* A full MVar can only have putters waiting. */
+            final TSO putter = getListener();
+            if (putter == null) {
+                value = null;
+            } else {
+                value = putter.handoff;
+                putter.handoff = null;
+                putter.signal();
+            }
+        }
+        return val;
+    }
+
+    private final boolean putLocked(Closure val) {
+        if (value != null) return false;
+        /* An empty MVar can only have takers and readers waiting. Readers that
+           are ahead of the first taker get to see the value too. */
+        TSO tso;
+        while ((tso = getListener()) != null) {
+            final boolean reader = tso.whyBlocked == BlockedOnMVarRead;
+            tso.handoff = val;
+            tso.signal();
+            if (!reader) return true;
+        }
+        value = val;
+        return true;
+    }
+
+    /* Wait Queue
+       The TSOs that are blocked on this MVar are queued in FIFO order through
+       their `link` field. */
+
+    private final void registerListener(TSO tso, WhyBlocked whyBlocked) {
+        tso.whyBlocked = whyBlocked;
+        tso.blockInfo  = this;
+        tso.link       = null;
+        if (bottom == null) {
+            top = tso;
+        } else {
+            bottom.link = tso;
+        }
+        bottom = tso;
+    }
+
+    /* Queues the TSO ahead of all the others. */
+    private final void pushListener(TSO tso, WhyBlocked whyBlocked) {
+        tso.whyBlocked = whyBlocked;
+        tso.blockInfo  = this;
+        tso.link       = top;
+        if (bottom == null) {
+            bottom = tso;
+        }
+        top = tso;
+    }
+
+    private final TSO getListener() {
+        final TSO tso = top;
+        if (tso != null) {
+            top = tso.link;
+            if (top == null) {
+                bottom = null;
+            }
+            tso.link = null;
+        }
+        return tso;
+    }
+
+    /* Returns false if the TSO was not in the queue. */
+    private final boolean removeListener(TSO tso) {
+        TSO prev = null;
+        TSO cur  = top;
+        while (cur != null && cur != tso) {
+            prev = cur;
+            cur  = cur.link;
+        }
+        if (cur == null) return false;
+        if (prev == null) {
+            top = cur.link;
+        } else {
+            prev.link = cur.link;
+        }
+        if (bottom == cur) {
+            bottom = prev;
+        }
+        cur.link = null;
+        return true;
+    }
+
+    /** Locking Mechanisms **/
+
+    public final void lock() {
+        int spins = 0;
+        while (!casLock(0, 1)) {
+            if (++spins == Concurrent.SPIN_COUNT) {
+                /* The owner may have been descheduled, so give it a chance. */
+                spins = 0;
+                Thread.yield();
+            }
+        }
+    }
+
+    public final void unlock() {
+        lock = 0;
+    }
+
     private static final boolean useUnsafe = UnsafeUtil.UNSAFE != null;
     private static long mvarValueOffset    = 0;
     private static long mvarTopOffset      = 0;
+    private static long mvarLockOffset     = 0;
 
     static {
         if (useUnsafe) {
@@ -82,6 +271,8 @@ public class MVar extends Value {
                     (MVar.class.getDeclaredField("value"));
                 mvarTopOffset = UNSAFE.objectFieldOffset
                     (MVar.class.getDeclaredField("top"));
+                mvarLockOffset = UNSAFE.objectFieldOffset
+                    (MVar.class.getDeclaredField("lock"));
             } catch (ReflectiveOperationException e) {
                 e.printStackTrace();
             }
@@ -94,6 +285,8 @@ public class MVar extends Value {
     private static final AtomicReferenceFieldUpdater<MVar, TSO> topUpdater
         = AtomicReferenceFieldUpdater
         .newUpdater(MVar.class, TSO.class, "top");
+    private static final AtomicIntegerFieldUpdater<MVar> lockUpdater
+        = AtomicIntegerFieldUpdater.newUpdater(MVar.class, "lock");
 
     public final boolean casValue(Closure expected, Closure update) {
         if (useUnsafe) {
@@ -110,4 +303,12 @@ public class MVar extends Value {
             return topUpdater.compareAndSet(this, expected, update);
         }
     }
+
+    public final boolean casLock(int expected, int update) {
+        if (useUnsafe) {
+            return UNSAFE.compareAndSwapInt(this, mvarLockOffset, expected, update);
+        } else {
+            return lockUpdater.compareAndSet(this, expected, update);
+        }
+    }
 }
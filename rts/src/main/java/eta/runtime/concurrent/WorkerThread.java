@@ -1,5 +1,7 @@
 package eta.runtime.concurrent;
 
+import java.lang.reflect.Method;
+
 import eta.runtime.Runtime;
 import eta.runtime.stg.Capability;
 
@@ -11,6 +13,10 @@ public class WorkerThread extends Thread {
 
     @Override
     public void run() {
+        runWorker();
+    }
+
+    public static void runWorker() {
         Capability worker = Capability.getLocal(true);
         try {
             worker.schedule(null);
@@ -20,7 +26,55 @@ public class WorkerThread extends Thread {
             }
             e.printStackTrace();
         } finally {
-            Capability.workerCapabilities.remove(worker);
+            worker.destroyWorker();
+        }
+    }
+
+    /* Starts a new Worker Capability, on a virtual thread if eta.rts.virtualThreads
+       is set and the JDK supports them. */
+    public static void spawn() {
+        if (Runtime.useVirtualThreads() && virtualThreadBuilder != null) {
+            try {
+                virtualThreadStart.invoke(virtualThreadBuilder, workerRunnable);
+                return;
+            } catch (java.lang.Exception e) {
+                if (Runtime.debugScheduler()) {
+                    debugScheduler("Failed to start a virtual thread: " + e);
+                }
+            }
+        }
+        new WorkerThread().start();
+    }
+
+    private static final Runnable workerRunnable = new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        };
+
+    /* Virtual threads are only available from JDK 21 onwards, so they're accessed
+       reflectively to keep the runtime running on older JDKs. */
+    private static final Object virtualThreadBuilder;
+    private static final Method virtualThreadStart;
+
+    static {
+        Object builder = null;
+        Method start   = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                                  .invoke(builder, "eta-worker-", 0L);
+            start   = builderClass.getMethod("start", Runnable.class);
+        } catch (java.lang.Exception e) {
+            if (Runtime.useVirtualThreads() && Runtime.debugScheduler()) {
+                debugScheduler("Virtual threads are not supported by this JDK: " + e);
+            }
+            builder = null;
+            start   = null;
         }
+        virtualThreadBuilder = builder;
+        virtualThreadStart   = start;
     }
 }
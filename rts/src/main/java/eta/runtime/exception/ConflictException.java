@@ -0,0 +1,8 @@
+package eta.runtime.exception;
+
+/* Thrown when a transaction reads a TVar that's inconsistent with what it has
+   read so far, so that it's restarted instead of running on a broken view. */
+public class ConflictException extends StgException {
+    public static ConflictException INSTANCE = new ConflictException();
+    public ConflictException() {}
+}
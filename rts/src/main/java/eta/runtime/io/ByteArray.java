@@ -3,7 +3,9 @@ package eta.runtime.io;
 import java.util.Arrays;
 import java.util.TreeMap;
 import java.util.Map;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.lang.ref.WeakReference;
 
 import eta.runtime.Runtime;
@@ -32,6 +34,16 @@ public final class ByteArray extends Value {
         return byteArray;
     }
 
+    /* A pinned ByteArray over part of a file. The file is unmapped once the
+       ByteArray is collected. */
+    public static ByteArray createMapped(FileChannel channel, long offset, int n,
+                                         FileChannel.MapMode mode) throws IOException {
+        long address = MemoryManager.mapFile(channel, offset, n, mode);
+        ByteArray byteArray = new ByteArray(address, n);
+        IO.recordByteArray(byteArray);
+        return byteArray;
+    }
+
     public int  size;
     public long bufferAddress;
 
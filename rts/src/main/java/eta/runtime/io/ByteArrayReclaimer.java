@@ -0,0 +1,118 @@
+package eta.runtime.io;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.PhantomReference;
+
+import eta.runtime.storage.ManagedHeap;
+
+/* The ByteArray Reclaimer
+   A single daemon thread that waits on the reference queue of the ByteArrays
+   and frees their memory as soon as the GC has collected them, independently
+   of whether any Capability ever goes idle. The frees are handed to the owners
+   of the blocks through their free messages, so each owner processes the whole
+   batch the next time it allocates or idles.
+
+   The references are kept reachable in intrusive lists instead of a map. The
+   lists are striped by the registering thread to keep the Capabilities from
+   contending on a single lock. */
+public class ByteArrayReclaimer extends Thread {
+
+    private static final ReferenceQueue<ByteArray> queue = new ReferenceQueue<ByteArray>();
+
+    private static final int NUM_STRIPES = 16;
+    private static final Ref[] stripes = new Ref[NUM_STRIPES];
+
+    static {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            /* Sentinels */
+            stripes[i] = new Ref(null, 0, null);
+        }
+    }
+
+    private static volatile ByteArrayReclaimer reclaimer;
+
+    private static class Ref extends PhantomReference<ByteArray> {
+        public final long address;
+        /* Guarded by the stripe's sentinel. */
+        private final Ref stripe;
+        private Ref prev;
+        private Ref next;
+
+        public Ref(ByteArray byteArray, long address, Ref stripe) {
+            super(byteArray, queue);
+            this.address = address;
+            this.stripe  = (stripe == null)? this : stripe;
+        }
+
+        public void link() {
+            synchronized (stripe) {
+                next = stripe.next;
+                prev = stripe;
+                if (next != null) next.prev = this;
+                stripe.next = this;
+            }
+        }
+
+        public void unlink() {
+            synchronized (stripe) {
+                prev.next = next;
+                if (next != null) next.prev = prev;
+                prev = null;
+                next = null;
+            }
+        }
+    }
+
+    public static void register(ByteArray byteArray) {
+        ensureStarted();
+        final Ref stripe = stripes[(int) Thread.currentThread().getId() & (NUM_STRIPES - 1)];
+        new Ref(byteArray, byteArray.bufferAddress, stripe).link();
+    }
+
+    /* Frees the memory of any ByteArrays that have been collected without waiting
+       for the reclaimer thread. */
+    public static void reclaim() {
+        final ManagedHeap heap = MemoryManager.getHeap();
+        Ref ref;
+        while ((ref = (Ref) queue.poll()) != null) {
+            reclaim(heap, ref);
+        }
+    }
+
+    private static void reclaim(ManagedHeap heap, Ref ref) {
+        ref.unlink();
+        heap.sendFreeMessage(ref.address);
+    }
+
+    private static void ensureStarted() {
+        if (reclaimer == null) {
+            synchronized (ByteArrayReclaimer.class) {
+                if (reclaimer == null) {
+                    ByteArrayReclaimer t = new ByteArrayReclaimer();
+                    t.start();
+                    reclaimer = t;
+                }
+            }
+        }
+    }
+
+    private ByteArrayReclaimer() {
+        super("eta-bytearray-reclaimer");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            try {
+                reclaim(MemoryManager.getHeap(), (Ref) queue.remove());
+                /* Drain the rest of the batch without blocking. */
+                reclaim();
+            } catch (InterruptedException e) {
+                /* Keep going, the reclaimer lives as long as the JVM. */
+            } catch (java.lang.Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
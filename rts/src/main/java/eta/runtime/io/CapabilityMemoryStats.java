@@ -0,0 +1,87 @@
+package eta.runtime.io;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.storage.MemoryCounters;
+
+import static eta.runtime.util.Report.*;
+
+/* A snapshot of the memory counters of a single Capability. */
+public class CapabilityMemoryStats {
+    int  id;
+    boolean worker;
+    long allocatedDirectBytes;
+    long allocatedHeapBytes;
+    long freedDirectBytes;
+    long freedHeapBytes;
+    long allocations;
+    long frees;
+    long pendingFreeMessages;
+
+    public CapabilityMemoryStats(Capability cap) {
+        MemoryCounters counters   = cap.getMemoryCounters();
+        this.id                   = cap.id;
+        this.worker               = cap.worker;
+        this.allocatedDirectBytes = counters.allocatedDirect;
+        this.allocatedHeapBytes   = counters.allocatedHeap;
+        this.freedDirectBytes     = counters.freedDirect;
+        this.freedHeapBytes       = counters.freedHeap;
+        this.allocations          = counters.allocations;
+        this.frees                = counters.frees;
+        this.pendingFreeMessages  = cap.pendingFreeMessages();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isWorker() {
+        return worker;
+    }
+
+    public long getAllocatedDirectBytes() {
+        return allocatedDirectBytes;
+    }
+
+    public long getAllocatedHeapBytes() {
+        return allocatedHeapBytes;
+    }
+
+    public long getFreedDirectBytes() {
+        return freedDirectBytes;
+    }
+
+    public long getFreedHeapBytes() {
+        return freedHeapBytes;
+    }
+
+    public long getLiveDirectBytes() {
+        return allocatedDirectBytes - freedDirectBytes;
+    }
+
+    public long getLiveHeapBytes() {
+        return allocatedHeapBytes - freedHeapBytes;
+    }
+
+    public long getAllocations() {
+        return allocations;
+    }
+
+    public long getFrees() {
+        return frees;
+    }
+
+    public long getPendingFreeMessages() {
+        return pendingFreeMessages;
+    }
+
+    public void generateReport(StringBuilder sb) {
+        format(sb, worker? "Worker Capability %d:" : "Capability %d:", id);
+        format(sb, "  Live: %d bytes direct, %d bytes heap",
+               getLiveDirectBytes(), getLiveHeapBytes());
+        format(sb, "  Allocated: %d bytes direct, %d bytes heap in %d allocations",
+               allocatedDirectBytes, allocatedHeapBytes, allocations);
+        format(sb, "  Freed: %d bytes direct, %d bytes heap in %d frees",
+               freedDirectBytes, freedHeapBytes, frees);
+        format(sb, "  Pending Free Messages: %d", pendingFreeMessages);
+    }
+}
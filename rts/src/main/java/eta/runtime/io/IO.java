@@ -1,17 +1,12 @@
 package eta.runtime.io;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.PhantomReference;
-
+import eta.runtime.stg.Capability;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.StgContext;
 import eta.runtime.stg.TSO;
 import eta.runtime.thunk.Ap2Upd;
 import eta.runtime.thunk.SelectorPUpd;
+import static eta.runtime.stg.TSO.WhyBlocked.*;
 
 public class IO {
 
@@ -28,18 +23,24 @@ public class IO {
         return null;
     }
 
+    /* The TSO is bound to the Java stack of its Capability, so the delay parks
+       the Capability until the deadline instead of sleeping. This keeps the inbox
+       served and lets throwTo wake it up through signal() like any other blocked
+       TSO. */
     public static void delay(StgContext context, int time) {
-        TSO tso = context.currentTSO;
-        boolean immune = tso.suspendInterrupts(true);
-        // Clear any existing interrupts.
-        Thread.interrupted();
+        final Capability cap = context.myCapability;
+        final TSO tso = context.currentTSO;
+        final long deadline = System.nanoTime() + time * 1000L;
+        tso.whyBlocked = BlockedOnDelay;
+        tso.blockInfo  = null;
         try {
-            Thread.sleep(time / 1000, (time % 1000) * 1000);
-        } catch (InterruptedException ie) {
-            // If interrupted, run the idleLoop to see why.
-            context.myCapability.idleLoop(false);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                cap.blockedLoop(remaining);
+            }
+        } finally {
+            tso.whyBlocked = NotBlocked;
         }
-        tso.resumeInterrupts(immune);
     }
 
     public static Closure atomicModifyMutVar(StgContext context, MutVar mv, Closure f) {
@@ -68,40 +69,17 @@ public class IO {
         }
     }
 
-    /* Managing ByteArrays */
-    public static ReferenceQueue<ByteArray> byteArrayRefQueue = new ReferenceQueue<ByteArray>();
-    public static AtomicBoolean byteArrayFreeLock = new AtomicBoolean();
-
-    public static Map<PhantomReference<ByteArray>, Long> byteArrayRefMap
-        = new ConcurrentHashMap<PhantomReference<ByteArray>, Long>();
-
+    /* Managing ByteArrays
+       The memory is freed by the ByteArrayReclaimer once the ByteArray has been
+       collected. */
     public static void recordByteArray(ByteArray byteArray) {
-        long address = byteArray.bufferAddress;
-        if (address != 0) {
-            PhantomReference<ByteArray> byteArrayRef
-                = new PhantomReference<ByteArray>(byteArray, byteArrayRefQueue);
-            byteArrayRefMap.put(byteArrayRef, address);
+        if (byteArray.bufferAddress != 0) {
+            ByteArrayReclaimer.register(byteArray);
         }
     }
 
-    @SuppressWarnings("unchecked")
     public static void checkForGCByteArrays() {
-        /* This check can be skipped if another thread is doing it. */
-        if (byteArrayFreeLock.compareAndSet(false, true)) {
-            try {
-                PhantomReference<ByteArray> ref;
-                while ((ref = (PhantomReference<ByteArray>) byteArrayRefQueue.poll())
-                       != null) {
-                    Long address = byteArrayRefMap.get(ref);
-                    if (address != null) {
-                        MemoryManager.free(address);
-                    }
-                    byteArrayRefMap.remove(ref);
-                }
-            } finally {
-                byteArrayFreeLock.set(false);
-            }
-        }
+        ByteArrayReclaimer.reclaim();
     }
 
     /* Managing Non-Blocking I/O */
@@ -12,17 +12,21 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import eta.runtime.Runtime;
 import eta.runtime.stg.Capability;
 import eta.runtime.stg.WeakPtr;
 import eta.runtime.storage.ManagedHeap;
-import eta.runtime.storage.CachedBlock;
 import eta.runtime.storage.Block;
 import static eta.runtime.RuntimeLogging.barf;
+import static eta.runtime.RuntimeLogging.debugBelch;
+import static eta.runtime.util.Report.blankLine;
 import static eta.runtime.RuntimeLogging.debugMemoryManager;
 
 public class MemoryManager {
@@ -34,10 +38,17 @@ public class MemoryManager {
     private static final int MANAGED_HEAP_BLOCK_SIZE   = 4096;
     /* Should be equal to cache line size in bytes. */
     private static final int MANAGED_HEAP_MINIBLOCK_SIZE = 64;
+    /* The amount of memory in free blocks that's kept around for reuse before
+       it's released. */
+    private static final long MANAGED_HEAP_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+    /* Serve small allocations from size-class slabs. */
+    private static final boolean MANAGED_HEAP_USE_SLABS = true;
     private static ManagedHeap globalManagedHeap =
         new ManagedHeap(MANAGED_HEAP_NURSERY_SIZE,
                         MANAGED_HEAP_BLOCK_SIZE,
-                        MANAGED_HEAP_MINIBLOCK_SIZE);
+                        MANAGED_HEAP_MINIBLOCK_SIZE,
+                        MANAGED_HEAP_MAX_POOLED_BYTES,
+                        MANAGED_HEAP_USE_SLABS);
 
     /* The shared empty buffer */
     public final static long nullAddress = 0L;
@@ -54,7 +65,18 @@ public class MemoryManager {
         if (n < 0) {
             throw new IllegalArgumentException("Allocated size must be positive");
         }
-        long address = globalManagedHeap.allocateBuffer(n, direct, Capability.getLocal());
+        Capability cap = Capability.getLocal();
+        long address;
+        try {
+            address = globalManagedHeap.allocateBuffer(n, direct, cap);
+        } catch (OutOfMemoryError e) {
+            if (!direct) throw e;
+            /* The GC that preceded the error may have collected ByteArrays whose
+               memory can only be freed by this Capability. */
+            ByteArrayReclaimer.reclaim();
+            cap.processFreeMessages();
+            address = globalManagedHeap.allocateBuffer(n, direct, cap);
+        }
         if (Runtime.debugMemoryManager()) {
             debugMemoryManager("Allocating " + n  + " bytes " + (direct? "directly " : "") +
                                "at address " + address);
@@ -62,13 +84,34 @@ public class MemoryManager {
         return address;
     }
 
+    /** Memory-Mapped Files **/
+
+    /* Maps `length` bytes of the file starting at `offset` into the address space
+       so that it can be read and written through the returned address without
+       copying it in. Freeing the address unmaps the file. As with munmap(),
+       accessing the memory or any buffer obtained from it after that is
+       undefined. Files larger than 2GB have to be mapped in parts. */
+    public static long mapFile(FileChannel channel, long offset, long length,
+                               FileChannel.MapMode mode) throws IOException {
+        if (length <= 0 || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException
+                ("Mapped size must be positive and at most " + Integer.MAX_VALUE +
+                 " bytes");
+        }
+        MappedByteBuffer buffer = channel.map(mode, offset, length);
+        long address = globalManagedHeap.map(buffer);
+        if (Runtime.debugMemoryManager()) {
+            debugMemoryManager("Mapping " + length + " bytes of " + channel +
+                               " at offset " + offset + " to address " + address);
+        }
+        return address;
+    }
+
     /** Freeing Off-Heap Memory **/
 
+    /* The memory of ByteArrays is freed by the ByteArrayReclaimer thread as soon
+       as they are collected. */
     public static void maybeFreeNativeMemory() {
-        /* Free memory blocks associated with ByteArrays if the ByteArray itself
-           has been garbage collected. */
-        IO.checkForGCByteArrays();
-
         /* Check for any WeakPtr keys that have been GC'd and run both the
            Eta finalizers and Java finalizers. */
         WeakPtr.checkForGCWeakPtrs();
@@ -90,7 +133,9 @@ public class MemoryManager {
         globalManagedHeap =
             new ManagedHeap(MANAGED_HEAP_NURSERY_SIZE,
                             MANAGED_HEAP_BLOCK_SIZE,
-                            MANAGED_HEAP_MINIBLOCK_SIZE);
+                            MANAGED_HEAP_MINIBLOCK_SIZE,
+                            MANAGED_HEAP_MAX_POOLED_BYTES,
+                            MANAGED_HEAP_USE_SLABS);
     }
 
     /** Byte Buffer API to MemoryManager **/
@@ -102,22 +147,14 @@ public class MemoryManager {
         if (debug) {
             debugMemoryManager("Doing work at " + address);
         }
-        Block block = CachedBlock.getBlock(address);
-        if (block == null) {
-            block = getBlockSlow(address);
-        }
+        Block block = globalManagedHeap.getBlock(address);
+        block.checkActive(address);
         if (debug) {
             debugMemoryManager(address + " is at " + block);
         }
         return block;
     }
 
-    private static Block getBlockSlow(long address) {
-        Block block = globalManagedHeap.getBlock(address);
-        CachedBlock.setBlock(address, block);
-        return block;
-    }
-
     /* When doing bulk operations, this can be useful. It returns a ByteBuffer
        positioned at the place referred to by the address. It's duplicated so the
        user is free to change the position as necessary.
@@ -193,12 +230,32 @@ public class MemoryManager {
 
     /** Monitoring **/
 
+    private static final MemoryManagerStats stats = new MemoryManagerStats();
+
+    static {
+        if (Runtime.useMemoryManagerMBean()) {
+            MemoryManagerStats.registerMBean();
+        }
+        if (Runtime.getMemoryStatsInterval() > 0) {
+            MemoryManagerStats.startPeriodicDump(Runtime.getMemoryStatsInterval());
+        }
+    }
+
+    public static MemoryManagerStats getStats() {
+        return stats;
+    }
+
     public static void dumpMemoryManager() {
-        throw new IllegalArgumentException("Implement dumpMemoryManager.");
+        debugBelch("%s", stats.getReport());
     }
 
+    /* Also dumps every block along with its contents, so it's expensive. */
     public static void dumpMemoryManagerVerbose() {
-        throw new IllegalArgumentException("Implement dumpMemoryManagerVerbose.");
+        StringBuilder sb = new StringBuilder();
+        stats.generateReport(sb);
+        blankLine(sb);
+        globalManagedHeap.getStatistics().generateReport(sb);
+        debugBelch("%s", sb.toString());
     }
 
     /** Allocating constant strings **/
@@ -319,9 +376,14 @@ public class MemoryManager {
     public static ByteBuffer copy( long srcAddress, int srcOffset
                                  , long destAddress, int destOffset
                                  , int size) {
-        ByteBuffer src  = getBoundedBuffer(srcAddress);
         ByteBuffer dest = getBoundedBuffer(destAddress);
-        return copyByteBuffer(src,srcOffset,dest,destOffset,size);
+        if (size > 0) {
+            srcAddress  += srcOffset;
+            destAddress += destOffset;
+            getBlock(srcAddress).copy(srcAddress, getBlock(destAddress), destAddress, size);
+        }
+        dest.position(dest.position() + destOffset + size);
+        return dest;
     }
 
     public static ByteBuffer copy(long srcAddress, long destAddress, int size) {
@@ -330,8 +392,9 @@ public class MemoryManager {
 
     public static ByteBuffer set(long address, byte val, int size) {
         ByteBuffer buffer = getBoundedBuffer(address);
-        while (size-- != 0) {
-            buffer.put(val);
+        if (size > 0) {
+            getBlock(address).fill(address, val, size);
+            buffer.position(buffer.position() + size);
         }
         return buffer;
     }
@@ -353,36 +416,23 @@ public class MemoryManager {
         return address;
     }
 
+    /* The same as copy(), since the blocks copy overlapping ranges correctly. */
     public static ByteBuffer move(long srcAddress, long destAddress, int size) {
-        ByteBuffer src  = getBoundedBuffer(srcAddress);
-        ByteBuffer dest = getBoundedBuffer(destAddress);
-        ByteBuffer copy = ByteBuffer.allocate(size);
-        src.limit(src.position() + size);
-        copy.put(src);
-        copy.flip();
-        dest.put(copy);
-        return dest;
+        return copy(srcAddress, 0, destAddress, 0, size);
     }
 
     public static int compare(long a1, long a2, int n)  {
-        ByteBuffer b1 = getBoundedBuffer(a1);
-        ByteBuffer b2 = getBoundedBuffer(a2);
-        return compare(b1, b2, n);
+        if (n <= 0) return 0;
+        return getBlock(a1).compare(a1, getBlock(a2), a2, n);
     }
 
+    /* Compares the bytes from the current positions, which are left unchanged. */
     public static int compare(ByteBuffer b1, ByteBuffer b2, int n)  {
-        while (n-- != 0) {
-            int a = b1.get() & 0xFF;
-            int b = b2.get() & 0xFF;
-            if (a != b) {
-                return a - b;
-            }
-        }
-        return 0;
+        return Block.compare(b1, b1.position(), b2, b2.position(), n);
     }
 
     public static int compare(long a1, int o1, long a2, int o2, int n) {
-        return compare(getBoundedBuffer(a1,o1,n), getBoundedBuffer(a2,o2,n), n);
+        return compare(a1 + o1, a2 + o2, n);
     }
 
     public static int compare(long a1, int o1, ByteBuffer b2, int n) {
@@ -406,13 +456,13 @@ public class MemoryManager {
         return chr(b, (byte) c, n);
     }
 
+    /* Leaves the position of `b` just past the occurrence of `c` if there is
+       one, and `n` bytes further otherwise. */
     public static int chrIndex(ByteBuffer b, byte c, int n) {
-        for (int i = 0; i < n ; i++) {
-            byte nxt = b.get();
-            if (nxt == c)
-              return i;
-        }
-        return -1;
+        int position = b.position();
+        int idx = Block.indexOf(b, position, c, n);
+        b.position(position + ((idx == -1)? n : idx + 1));
+        return idx;
     }
 
     public static int chrIndex(ByteBuffer b, int c, int n) {
@@ -421,7 +471,9 @@ public class MemoryManager {
 
     public static int chrOffset(long address, int startofs, int endofs, byte c) {
         int n = endofs - startofs;
-        int idxFound = chrIndex(getBoundedBuffer(address, startofs, n), c, n);
+        if (n <= 0) return endofs;
+        long start = address + startofs;
+        int idxFound = getBlock(start).indexOf(start, c, n);
         return (idxFound == -1)? endofs : idxFound;
     }
 
@@ -0,0 +1,23 @@
+package eta.runtime.io;
+
+/* The statistics of the MemoryManager as exposed through JMX. All of the sizes
+   are in bytes. */
+public interface MemoryManagerMXBean {
+    long getLiveDirectBytes();
+    long getLiveHeapBytes();
+    long getTotalAllocatedBytes();
+    long getTotalFreedBytes();
+    long getDirectBlocks();
+    long getDirectBlockBytes();
+    long getHeapBlocks();
+    long getHeapBlockBytes();
+    long getSlabs();
+    long getMappedBlocks();
+    long getMappedBytes();
+    long getPooledBytes();
+    double getFragmentation();
+    long getPendingFreeMessages();
+    double getAllocationRate();
+    CapabilityMemoryStats[] getCapabilities();
+    String getReport();
+}
@@ -0,0 +1,222 @@
+package eta.runtime.io;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+import javax.management.InstanceAlreadyExistsException;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.storage.ManagedHeap;
+
+import static eta.runtime.util.Report.*;
+import static eta.runtime.RuntimeLogging.debugBelch;
+
+/* Live statistics of the MemoryManager that are cheap enough to read in
+   production. They're computed from counters that the Capabilities and the
+   ManagedHeap keep up to date, so unlike ManagedHeap.getStatistics() nothing is
+   walked or copied. */
+public class MemoryManagerStats implements MemoryManagerMXBean {
+
+    public static final String OBJECT_NAME = "eta.runtime:type=MemoryManager";
+
+    /* The last sample of the allocation rate. */
+    private long lastSampleTime = System.nanoTime();
+    private long lastAllocatedBytes;
+
+    private static ManagedHeap heap() {
+        return MemoryManager.getHeap();
+    }
+
+    /* Both the main and the worker Capabilities, since either can allocate. */
+    @Override
+    public CapabilityMemoryStats[] getCapabilities() {
+        List<CapabilityMemoryStats> stats = new ArrayList<CapabilityMemoryStats>();
+        synchronized (Capability.capabilities) {
+            for (Capability cap: Capability.capabilities) {
+                stats.add(new CapabilityMemoryStats(cap));
+            }
+        }
+        /* The worker set is concurrent, so iterating it needs no lock. */
+        for (Capability cap: Capability.workerCapabilities) {
+            stats.add(new CapabilityMemoryStats(cap));
+        }
+        return stats.toArray(new CapabilityMemoryStats[stats.size()]);
+    }
+
+    @Override
+    public long getLiveDirectBytes() {
+        long bytes = 0;
+        for (CapabilityMemoryStats stats: getCapabilities()) {
+            bytes += stats.getLiveDirectBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getLiveHeapBytes() {
+        long bytes = 0;
+        for (CapabilityMemoryStats stats: getCapabilities()) {
+            bytes += stats.getLiveHeapBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getTotalAllocatedBytes() {
+        long bytes = 0;
+        for (CapabilityMemoryStats stats: getCapabilities()) {
+            bytes += stats.getAllocatedDirectBytes() + stats.getAllocatedHeapBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getTotalFreedBytes() {
+        long bytes = 0;
+        for (CapabilityMemoryStats stats: getCapabilities()) {
+            bytes += stats.getFreedDirectBytes() + stats.getFreedHeapBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getPendingFreeMessages() {
+        long messages = 0;
+        for (CapabilityMemoryStats stats: getCapabilities()) {
+            messages += stats.getPendingFreeMessages();
+        }
+        return messages;
+    }
+
+    @Override
+    public long getDirectBlocks() {
+        return heap().getDirectBlocks();
+    }
+
+    @Override
+    public long getDirectBlockBytes() {
+        return heap().getDirectBlockBytes();
+    }
+
+    @Override
+    public long getHeapBlocks() {
+        return heap().getHeapBlocks();
+    }
+
+    @Override
+    public long getHeapBlockBytes() {
+        return heap().getHeapBlockBytes();
+    }
+
+    @Override
+    public long getSlabs() {
+        return heap().getSlabs();
+    }
+
+    @Override
+    public long getMappedBlocks() {
+        return heap().getMappedBlocks();
+    }
+
+    @Override
+    public long getMappedBytes() {
+        return heap().getMappedBytes();
+    }
+
+    @Override
+    public long getPooledBytes() {
+        return heap().getPooledBytes();
+    }
+
+    /* The fraction of the memory in the blocks in use that isn't allocated. */
+    @Override
+    public double getFragmentation() {
+        return fragmentation(getLiveDirectBytes() + getLiveHeapBytes(),
+                             getDirectBlockBytes() + getHeapBlockBytes());
+    }
+
+    private static double fragmentation(long liveBytes, long blockBytes) {
+        if (blockBytes <= 0) return 0;
+        return Math.max(0, 1 - (double) liveBytes / blockBytes);
+    }
+
+    /* The bytes allocated per second since the previous sample. */
+    @Override
+    public synchronized double getAllocationRate() {
+        long now       = System.nanoTime();
+        long allocated = getTotalAllocatedBytes();
+        double rate    = (now == lastSampleTime)? 0 :
+            (allocated - lastAllocatedBytes) * 1e9 / (now - lastSampleTime);
+        lastSampleTime     = now;
+        lastAllocatedBytes = allocated;
+        return rate;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        generateReport(sb);
+        return sb.toString();
+    }
+
+    public void generateReport(StringBuilder sb) {
+        CapabilityMemoryStats[] capabilities = getCapabilities();
+        long liveDirect = 0, liveHeap = 0, allocated = 0, freed = 0, pending = 0;
+        for (CapabilityMemoryStats stats: capabilities) {
+            liveDirect += stats.getLiveDirectBytes();
+            liveHeap   += stats.getLiveHeapBytes();
+            allocated  += stats.getAllocatedDirectBytes() + stats.getAllocatedHeapBytes();
+            freed      += stats.getFreedDirectBytes() + stats.getFreedHeapBytes();
+            pending    += stats.getPendingFreeMessages();
+        }
+        ManagedHeap heap = heap();
+        long directBlockBytes = heap.getDirectBlockBytes();
+        long heapBlockBytes   = heap.getHeapBlockBytes();
+        header(sb, "Eta Memory Manager");
+        blankLine(sb);
+        format(sb, "Live: %d bytes direct, %d bytes heap", liveDirect, liveHeap);
+        format(sb, "Total Allocated: %d bytes", allocated);
+        format(sb, "Total Freed: %d bytes", freed);
+        format(sb, "Allocation Rate: %.0f bytes/s", getAllocationRate());
+        format(sb, "Direct Blocks: %d (%d bytes)", heap.getDirectBlocks(), directBlockBytes);
+        format(sb, "Heap Blocks: %d (%d bytes)", heap.getHeapBlocks(), heapBlockBytes);
+        format(sb, "Slabs: %d", heap.getSlabs());
+        format(sb, "Mapped Files: %d (%d bytes)", heap.getMappedBlocks(),
+               heap.getMappedBytes());
+        format(sb, "Pooled: %d bytes", heap.getPooledBytes());
+        format(sb, "Fragmentation: %.1f%% direct, %.1f%% heap",
+               fragmentation(liveDirect, directBlockBytes) * 100,
+               fragmentation(liveHeap, heapBlockBytes) * 100);
+        format(sb, "Pending Free Messages: %d", pending);
+        blankLine(sb);
+        for (CapabilityMemoryStats stats: capabilities) {
+            stats.generateReport(sb);
+        }
+    }
+
+    /* JMX */
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new MemoryManagerStats(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            /* Registered by an earlier run of the runtime in this JVM. */
+        } catch (Exception e) {
+            debugBelch("Failed to register the MemoryManager MBean: %s", e);
+        }
+    }
+
+    /* Periodic Dumps */
+    public static void startPeriodicDump(int intervalMillis) {
+        final MemoryManagerStats stats = new MemoryManagerStats();
+        new Timer("eta-memory-stats", true).schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    debugBelch("%s", stats.getReport());
+                }
+            }, intervalMillis, intervalMillis);
+    }
+}
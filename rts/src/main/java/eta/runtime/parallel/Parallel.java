@@ -1,8 +1,5 @@
 package eta.runtime.parallel;
 
-import java.util.Deque;
-import java.util.concurrent.LinkedBlockingDeque;
-
 import eta.runtime.Runtime;
 import eta.runtime.stg.Capability;
 import eta.runtime.stg.Closure;
@@ -12,8 +9,8 @@ import static eta.runtime.RuntimeLogging.barf;
 import static eta.runtime.RuntimeLogging.debugScheduler;
 
 public class Parallel {
-    public static final Deque<Closure> globalSparkPool = new LinkedBlockingDeque<Closure>(Runtime.getMaxLocalSparks());
-    public static final SparkCounters globalSparkStats = new SparkCounters();
+    /* The counters of Capabilities that have been destroyed. */
+    private static final SparkCounters retiredSparkStats = new SparkCounters();
 
     static {
         Runtime.parallelClassLoaded = true;
@@ -31,48 +28,58 @@ public class Parallel {
     }
 
     public static int numSparks(StgContext context) {
-        return globalSparkPoolSize();
+        return context.myCapability.sparks.size();
     }
 
+    /* Looks for a spark in the local spark pool first (LIFO) and then steals from
+       the spark pools of the other Capabilities (FIFO). */
     public static Closure findSpark(Capability cap) {
         if (!cap.emptyRunQueue()) {
             return null;
         }
-        boolean retry;
-        do {
-            retry = false;
-            Closure spark = globalSparkPool.pollLast();
-            while (spark != null && spark.getEvaluated() != null) {
-                globalSparkStats.fizzled.getAndIncrement();
-                spark = globalSparkPool.pollLast();
-            }
-            if (spark != null) {
-                globalSparkStats.converted.getAndIncrement();
+        final SparkCounters stats = cap.sparkStats;
+        Closure spark;
+        while ((spark = cap.sparks.pop()) != null) {
+            if (spark.getEvaluated() == null) {
+                stats.converted.getAndIncrement();
                 return spark;
             }
-            if (!emptyGlobalSparkPool()) {
-                retry = true;
+            stats.fizzled.getAndIncrement();
+        }
+        while ((spark = cap.stealSpark()) != null) {
+            if (spark.getEvaluated() == null) {
+                stats.converted.getAndIncrement();
+                return spark;
             }
-        } while(retry);
+            stats.fizzled.getAndIncrement();
+        }
         if (Runtime.debugScheduler()) {
             debugScheduler("No Sparks stolen.");
         }
         return null;
     }
 
-    public static boolean emptyGlobalSparkPool() {
-        return globalSparkPool.isEmpty();
+    public static boolean anySparks() {
+        return Capability.anySparks();
     }
 
-    public static int globalSparkPoolSize() {
-        return globalSparkPool.size();
+    public static int sparkPoolsSize() {
+        return Capability.sparkWorkSize();
     }
 
-    public static boolean anySparks() {
-        return !emptyGlobalSparkPool();
+    /* Aggregates the spark counters of all the Capabilities. */
+    public static SparkCounters getSparkStats() {
+        final SparkCounters stats = new SparkCounters();
+        synchronized (retiredSparkStats) {
+            stats.add(retiredSparkStats);
+        }
+        Capability.addSparkStats(stats);
+        return stats;
     }
 
-    public static boolean submitSpark(Closure spark) {
-        return globalSparkPool.offerFirst(spark);
+    public static void retireSparkStats(SparkCounters stats) {
+        synchronized (retiredSparkStats) {
+            retiredSparkStats.add(stats);
+        }
     }
 }
@@ -8,4 +8,15 @@ public class SparkCounters {
     public AtomicLong overflowed = new AtomicLong();
     public AtomicLong converted  = new AtomicLong();
     public AtomicLong fizzled    = new AtomicLong();
+    /* Left in the pool of a worker Capability when it was destroyed. */
+    public AtomicLong discarded  = new AtomicLong();
+
+    public final void add(SparkCounters other) {
+        created.getAndAdd(other.created.get());
+        dud.getAndAdd(other.dud.get());
+        overflowed.getAndAdd(other.overflowed.get());
+        converted.getAndAdd(other.converted.get());
+        fizzled.getAndAdd(other.fizzled.get());
+        discarded.getAndAdd(other.discarded.get());
+    }
 }
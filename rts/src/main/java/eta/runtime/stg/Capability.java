@@ -3,12 +3,14 @@ package eta.runtime.stg;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -29,13 +31,17 @@ import eta.runtime.message.MessageThrowTo;
 import eta.runtime.message.MessageShutdown;
 import eta.runtime.message.MessageWakeup;
 import eta.runtime.parallel.Parallel;
+import eta.runtime.parallel.SparkCounters;
 import eta.runtime.storage.Block;
 import eta.runtime.storage.LocalHeap;
+import eta.runtime.storage.MemoryCounters;
+import eta.runtime.storage.Slab;
 import eta.runtime.thunk.BlockingQueue;
 import eta.runtime.thunk.Thunk;
 import eta.runtime.thunk.UpdateInfo;
 import eta.runtime.thunk.WhiteHole;
 import eta.runtime.util.MPSCLongQueue;
+import eta.runtime.util.WorkStealingDeque;
 import static eta.runtime.stg.TSO.*;
 import static eta.runtime.stg.TSO.WhatNext;
 import static eta.runtime.stg.TSO.WhatNext.*;
@@ -79,9 +85,36 @@ public final class Capability implements LocalHeap {
                 cap.id = capabilities.size() - 1;
             }
         }
+        addStealTarget(cap);
         return cap;
     }
 
+    /* A snapshot of all the live Capabilities that idle Capabilities can steal
+       threads from. It's copied on write since Capabilities are created and
+       destroyed rarely compared to how often they're scanned. */
+    private static volatile Capability[] stealTargets = new Capability[0];
+
+    private static synchronized void addStealTarget(Capability cap) {
+        Capability[] oldTargets = stealTargets;
+        Capability[] newTargets = Arrays.copyOf(oldTargets, oldTargets.length + 1);
+        newTargets[oldTargets.length] = cap;
+        stealTargets = newTargets;
+    }
+
+    private static synchronized void removeStealTarget(Capability cap) {
+        Capability[] oldTargets = stealTargets;
+        int n = oldTargets.length;
+        for (int i = 0; i < n; i++) {
+            if (oldTargets[i] == cap) {
+                Capability[] newTargets = new Capability[n - 1];
+                System.arraycopy(oldTargets, 0, newTargets, 0, i);
+                System.arraycopy(oldTargets, i + 1, newTargets, i, n - i - 1);
+                stealTargets = newTargets;
+                return;
+            }
+        }
+    }
+
     public static Capability getLocal() {
         return getLocal(false);
     }
@@ -98,7 +131,20 @@ public final class Capability implements LocalHeap {
     public final boolean worker;
     public final WeakReference<Thread> thread;
     public final StgContext context   = new StgContext();
-    public Deque<TSO> runQueue  = new LinkedList<TSO>();
+    /* The run queue is an intrusive FIFO linked through TSO.runQueueLink and is
+       only ever touched by the thread that owns this Capability. */
+    private TSO runQueueHead;
+    private TSO runQueueTail;
+    private int runQueueSize;
+    /* Newly forked or yielded threads that haven't been bound to a Capability
+       yet. Other Capabilities can steal from here when they're idle. */
+    public final WorkStealingDeque<TSO> sharedRunQueue
+        = new WorkStealingDeque<TSO>(Runtime.getLocalRunQueueSize());
+    /* Sparks created on this Capability. Other Capabilities can steal from here
+       when they're idle. */
+    public final WorkStealingDeque<Closure> sparks
+        = new WorkStealingDeque<Closure>(Runtime.getMaxLocalSparks());
+    public final SparkCounters sparkStats = new SparkCounters();
     public int  lastWorkSize;
     public long lastBlockCheck;
     public Deque<Message> inbox = new ConcurrentLinkedDeque<Message>();
@@ -108,9 +154,14 @@ public final class Capability implements LocalHeap {
     public Block activeHeapBlock;
     public Block activeDirectSuperBlock;
     public Block activeHeapSuperBlock;
+    /* Slabs with free slots, indexed by size class. Full slabs are dropped from
+       these stacks until one of their slots is freed. */
+    public final Block[] activeDirectSlabs = new Block[Slab.NUM_SIZE_CLASSES];
+    public final Block[] activeHeapSlabs   = new Block[Slab.NUM_SIZE_CLASSES];
 
     public MPSCLongQueue freeMessages = new MPSCLongQueue();
     public long freeSequence;
+    public final MemoryCounters memoryStats = new MemoryCounters();
 
     public volatile boolean interrupt;
 
@@ -146,7 +197,7 @@ public final class Capability implements LocalHeap {
                - Deadlock detection. Be able to detect <<loop>>.
             */
             if (emptyRunQueue()) {
-                tryStealGlobalRunQueue();
+                tryStealRunQueues();
                 if (emptyRunQueue()) {
                     activateSpark();
                     if (emptyRunQueue()) {
@@ -206,7 +257,7 @@ public final class Capability implements LocalHeap {
 
             if (prevWhatNext == ThreadYield || prevWhatNext == ThreadBlock) {
                 if (prevWhatNext == ThreadYield) {
-                    Concurrent.pushToGlobalRunQueue(t);
+                    pushToSharedRunQueue(t);
                 }
                 t.whatNext = ThreadRun;
                 t.cap = null;
@@ -228,7 +279,12 @@ public final class Capability implements LocalHeap {
                 }
             }
 
-            if (emptyRunQueue() && !worker) break;
+            if (emptyRunQueue() && !worker) {
+                /* Non-worker Capabilities stop scheduling here, so hand off any
+                   threads that are still waiting for them. */
+                flushSharedRunQueue();
+                break;
+            }
         } while (true);
         return result;
     }
@@ -236,26 +292,44 @@ public final class Capability implements LocalHeap {
     /* Run Queue */
 
     public final boolean emptyRunQueue() {
-        return runQueue.isEmpty();
+        return runQueueHead == null;
     }
 
     public final int runQueueSize() {
-        return runQueue.size();
+        return runQueueSize;
     }
 
     public final void appendToRunQueue(TSO tso) {
-        if (!runQueue.contains(tso)) {
-            runQueue.offerLast(tso);
+        if (!tso.inRunQueue) {
+            tso.inRunQueue   = true;
+            tso.runQueueLink = null;
+            if (runQueueTail == null) {
+                runQueueHead = tso;
+            } else {
+                runQueueTail.runQueueLink = tso;
+            }
+            runQueueTail = tso;
+            runQueueSize++;
         }
         tso.cap = this;
     }
 
     public final TSO popRunQueue() {
-        return runQueue.pollFirst();
+        final TSO tso = runQueueHead;
+        if (tso != null) {
+            runQueueHead = tso.runQueueLink;
+            if (runQueueHead == null) {
+                runQueueTail = null;
+            }
+            tso.runQueueLink = null;
+            tso.inRunQueue   = false;
+            runQueueSize--;
+        }
+        return tso;
     }
 
     public final TSO peekRunQueue() {
-        return runQueue.peekFirst();
+        return runQueueHead;
     }
 
     /* Message Inbox */
@@ -295,17 +369,23 @@ public final class Capability implements LocalHeap {
     }
 
     public final boolean newSpark(Closure p) {
+        pushSpark(p);
+        idleLoop(false);
+        return true;
+    }
+
+    /* Adds the spark to the local pool without running the idle loop, which may
+       spawn workers to convert it. */
+    public final void pushSpark(Closure p) {
         if (p.getEvaluated() == null) {
-            if (Parallel.submitSpark(p)) {
-                Parallel.globalSparkStats.created.getAndIncrement();
+            if (sparks.push(p)) {
+                sparkStats.created.getAndIncrement();
             } else {
-                Parallel.globalSparkStats.overflowed.getAndIncrement();
+                sparkStats.overflowed.getAndIncrement();
             }
         } else {
-            Parallel.globalSparkStats.dud.getAndIncrement();
+            sparkStats.dud.getAndIncrement();
         }
-        idleLoop(false);
-        return true;
     }
 
     /* Lazy Blackholing */
@@ -418,6 +498,9 @@ public final class Capability implements LocalHeap {
                     debugScheduler(this + " soft interrupted while running " + tso + " "
                                    + tso.whyBlocked);
                 }
+                /* The TSO may be waiting in blockedLoop() without being
+                   interruptible, so make sure it gets to process its inbox. */
+                LockSupport.unpark(t);
             }
             return true;
         } else {
@@ -425,6 +508,15 @@ public final class Capability implements LocalHeap {
         }
     }
 
+    /* Wakes up the Capability if it's parked in blockedLoop(). Unlike interrupt(),
+       this has no effect on any Java code that the Capability may be running. */
+    public final void signal() {
+        final Thread t = thread.get();
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
     public final boolean interrupted() {
         if (interrupt) {
             interrupt = false;
@@ -512,18 +604,143 @@ public final class Capability implements LocalHeap {
         return sendMessage(this, MessageShutdown.getInstance());
     }
 
-    /* Globan Run Queue Stealing */
+    public final void destroyWorker() {
+        workerCapabilities.remove(this);
+        removeStealTarget(this);
+        flushSharedRunQueue();
+        /* Sparks are only hints, so it's safe to drop whatever is left, but
+           they're counted so that the totals still add up. */
+        Closure spark;
+        while ((spark = sparks.pop()) != null) {
+            if (spark.getEvaluated() == null) {
+                sparkStats.discarded.getAndIncrement();
+            } else {
+                sparkStats.fizzled.getAndIncrement();
+            }
+        }
+        Parallel.retireSparkStats(sparkStats);
+    }
+
+    /* Work Stealing */
+
+    public final void pushToSharedRunQueue(TSO tso) {
+        if (!sharedRunQueue.push(tso)) {
+            if (Runtime.debugScheduler()) {
+                debugScheduler("Shared run queue overflowed, pushing " + tso
+                              + " to the global run queue.");
+            }
+            Concurrent.pushToGlobalRunQueue(tso);
+        }
+    }
+
+    public final void flushSharedRunQueue() {
+        TSO tso;
+        while ((tso = sharedRunQueue.pop()) != null) {
+            Concurrent.pushToGlobalRunQueue(tso);
+        }
+    }
 
-    public final TSO tryStealGlobalRunQueue() {
-        TSO tso = Concurrent.stealFromGlobalRunQueue();
+    /* Looks for a runnable thread in the local shared run queue first, then the
+       Global Run Queue and finally in the shared run queues of the other
+       Capabilities. */
+    public final TSO tryStealRunQueues() {
+        TSO tso = sharedRunQueue.pop();
+        if (tso == null) {
+            tso = Concurrent.stealFromGlobalRunQueue();
+            if (tso != null) {
+                Concurrent.globalRunQueueModifiedTime = System.currentTimeMillis();
+            } else {
+                tso = stealFromCapabilities();
+            }
+        }
         if (tso != null) {
-            Concurrent.globalRunQueueModifiedTime = System.currentTimeMillis();
             tso.cap = this;
             tryWakeupThread(tso);
         }
         return tso;
     }
 
+    /* Visits the other Capabilities in a random order to avoid having all the
+       thieves contend on the same victim. */
+    private final TSO stealFromCapabilities() {
+        final Capability[] targets = stealTargets;
+        final int n = targets.length;
+        if (n > 1) {
+            final int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                final Capability victim = targets[(start + i) % n];
+                if (victim != this) {
+                    final TSO tso = victim.sharedRunQueue.steal();
+                    if (tso != null) {
+                        if (Runtime.debugScheduler()) {
+                            debugScheduler("Stole " + tso + " from " + victim);
+                        }
+                        return tso;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public static boolean anySharedRunQueueWork() {
+        for (Capability c: stealTargets) {
+            if (!c.sharedRunQueue.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    public static int sharedRunQueueWorkSize() {
+        int size = 0;
+        for (Capability c: stealTargets) {
+            size += c.sharedRunQueue.size();
+        }
+        return size;
+    }
+
+    /* Visits the spark pools of the other Capabilities in a random order. */
+    public final Closure stealSpark() {
+        final Capability[] targets = stealTargets;
+        final int n = targets.length;
+        if (n > 1) {
+            final int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                final Capability victim = targets[(start + i) % n];
+                if (victim != this) {
+                    final Closure spark = victim.sparks.steal();
+                    if (spark != null) {
+                        if (Runtime.debugScheduler()) {
+                            debugScheduler("Stole a spark from " + victim);
+                        }
+                        return spark;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public static boolean anySparks() {
+        for (Capability c: stealTargets) {
+            if (!c.sparks.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    public static int sparkWorkSize() {
+        int size = 0;
+        for (Capability c: stealTargets) {
+            size += c.sparks.size();
+        }
+        return size;
+    }
+
+    public static void addSparkStats(SparkCounters stats) {
+        for (Capability c: stealTargets) {
+            stats.add(c.sparkStats);
+        }
+    }
+
     /* Idle Loop */
 
     public final void idleLoop(boolean blocked) {
@@ -549,10 +766,8 @@ public final class Capability implements LocalHeap {
             /* Check for any completed futures and wake up the threads. */
             Concurrent.checkForCompletedFutures(this);
 
-            /* Check for any ready I/O operations and wake up the threads. */
-            Concurrent.checkForReadyIO(this);
-
             /* Free any memory if necessary */
+            processFreeMessages();
             MemoryManager.maybeFreeNativeMemory();
 
             /* Check if there are any deadlocked MVars. */
@@ -571,24 +786,32 @@ public final class Capability implements LocalHeap {
         }
     }
 
-    /* Blocked Loop */
+    /* Blocked Loop
+       Parks the Capability until whatever the current TSO is blocked on calls
+       signal() on it, a message arrives or the timeout expires. The timeout is
+       only a safety net, so callers should always re-check their condition. */
     public final void blockedLoop() {
         blockedLoop(Runtime.getMaxTSOBlockTimeNanos());
     }
 
     public final void blockedLoop(long nanos) {
         idleLoop(true);
-        LockSupport.parkNanos(nanos);
+        LockSupport.parkNanos(this, nanos);
         interrupted();
+        /* A hard interrupt will have done its job by now, so clear it or else
+           every subsequent park will return immediately. */
+        Thread.interrupted();
         idleLoop(false);
     }
 
     public static boolean globalWorkToDo() {
-        return !Concurrent.emptyGlobalRunQueue() || Parallel.anySparks();
+        return !Concurrent.emptyGlobalRunQueue() || anySharedRunQueueWork()
+            || Parallel.anySparks();
     }
 
     public static int globalWorkSize() {
-        return Concurrent.getGlobalRunQueueSize() + ((Parallel.anySparks())? 1 : 0);
+        return Concurrent.getGlobalRunQueueSize() + sharedRunQueueWorkSize()
+             + sparkWorkSize();
     }
 
     public final void manageOrSpawnWorkers() {
@@ -607,13 +830,13 @@ public final class Capability implements LocalHeap {
             if (!blockedCapabilities.isEmpty()) {
                 unblockCapabilities(currentWorkSize);
             } else if (workerCapabilitiesSize() < Runtime.getMaxWorkerCapabilities()) {
-                new WorkerThread().start();
+                WorkerThread.spawn();
             } else if ((System.nanoTime() - lastBlockCheck) >
                        Runtime.getMinTSOIdleTimeNanos()) {
                 /* If no work was done since the last block check, spin up a thread,
                    even though it exceeds the limit. */
                 if (lastWorkSize <= currentWorkSize) {
-                    new WorkerThread().start();
+                    WorkerThread.spawn();
                 }
                 lastWorkSize   = currentWorkSize;
                 lastBlockCheck = System.nanoTime();
@@ -691,7 +914,34 @@ public final class Capability implements LocalHeap {
         return address;
     }
 
-    private final void processFreeMessages() {
+    public final void setActiveSlab(Block slab, int sizeClass, boolean direct) {
+        final Block[] slabs = direct? activeDirectSlabs : activeHeapSlabs;
+        slab.setLink(slabs[sizeClass]);
+        slabs[sizeClass] = slab;
+    }
+
+    public final long allocateSlot(int sizeClass, boolean direct) {
+        processFreeMessages();
+        final Block[] slabs = direct? activeDirectSlabs : activeHeapSlabs;
+        final Block slab = slabs[sizeClass];
+        if (slab == null) return 0;
+        final long address = slab.allocateSlot();
+        if (slab.getSlab().isFull()) {
+            slabs[sizeClass] = slab.pop();
+        }
+        return address;
+    }
+
+    public final MemoryCounters getMemoryCounters() {
+        return memoryStats;
+    }
+
+    /* The number of frees sent by other threads that are yet to be processed. */
+    public final long pendingFreeMessages() {
+        return Math.max(0, freeMessages.getWriteSequence() - freeSequence);
+    }
+
+    public final void processFreeMessages() {
         while (freeMessages.canRead(freeSequence)) {
             MemoryManager.getHeap().free(freeMessages.read(freeSequence++));
         }
@@ -702,6 +952,8 @@ public final class Capability implements LocalHeap {
         activeHeapBlock        = null;
         activeDirectSuperBlock = null;
         activeHeapSuperBlock   = null;
+        Arrays.fill(activeDirectSlabs, null);
+        Arrays.fill(activeHeapSlabs, null);
         freeMessages           = new MPSCLongQueue();
         freeSequence           = 0;
     }
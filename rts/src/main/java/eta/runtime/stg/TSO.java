@@ -16,6 +16,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import eta.runtime.exception.Exception;
 import eta.runtime.message.MessageThrowTo;
 import eta.runtime.stm.STM;
+import eta.runtime.stm.TransactionLog;
 import eta.runtime.stm.TransactionRecord;
 import eta.runtime.thunk.BlackHole;
 import eta.runtime.thunk.UpdateInfoStack;
@@ -37,8 +38,12 @@ public final class TSO extends BlackHole {
     public volatile WhatNext whatNext = ThreadRun;
     public volatile WhyBlocked whyBlocked = NotBlocked;
     public volatile TransactionRecord trec;
+    /* Reused by all the transactions of this thread. */
+    public TransactionLog transactionLog;
     public volatile Capability cap;
     public volatile Object blockInfo;
+    /* The value that's exchanged with a blocked MVar operation. */
+    public volatile Closure handoff;
     public volatile int flags;
     public Queue<MessageThrowTo> blockedExceptions
         = new ConcurrentLinkedQueue<MessageThrowTo>();
@@ -47,6 +52,9 @@ public final class TSO extends BlackHole {
     public Closure exception;
     public AtomicBoolean lock = new AtomicBoolean(false);
     public volatile TSO link;
+    /* Only used by the run queue of the Capability that owns this TSO. */
+    public TSO runQueueLink;
+    public boolean inRunQueue;
     public HashMap<String,Object> extensibleState = new HashMap<String,Object>();
 
     /* Temporary per execution */
@@ -170,20 +178,30 @@ public final class TSO extends BlackHole {
     }
 
     public final void park() {
-        assert whyBlocked == NotBlocked;
+        assert whyBlocked == NotBlocked || whyBlocked == BlockedOnSTM;
         whyBlocked = BlockedOnSTM;
         blockInfo = null;
     }
 
-    public final void unpark(Capability cap) {
+    public final void unpark() {
+        /* Already woken up since it last parked. */
+        if (blockInfo != null) return;
         lock();
         if (whyBlocked == BlockedOnSTM && blockInfo == null) {
             blockInfo = STM.awake;
-            cap.tryWakeupThread(this);
+            signal();
         }
         unlock();
     }
 
+    /* Wakes up the Capability that this TSO is blocked on, if any. */
+    public final void signal() {
+        final Capability c = cap;
+        if (c != null) {
+            c.signal();
+        }
+    }
+
     public final StackTraceElement[] getStackTrace() {
         return this.cause.getStackTrace();
     }
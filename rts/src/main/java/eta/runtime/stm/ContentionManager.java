@@ -0,0 +1,263 @@
+package eta.runtime.stm;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.TSO;
+
+import static eta.runtime.RuntimeLogging.debugSTM;
+import static eta.runtime.RuntimeLogging.errorBelch;
+
+/* Decides how a transaction that aborted because of a conflict waits before it
+   runs again, so that long transactions aren't livelocked by a stream of short
+   ones. The manager is chosen with eta.rts.stm.contentionManager:
+
+   none     Run again right away. This is the default.
+   backoff  Wait for a random time below a window that doubles with every abort.
+   karma    Like backoff, but the transaction that has lost the most work (its
+            karma) claims priority and the transactions with less karma wait for
+            it before they commit.
+
+   Independently of the manager, a transaction that aborts
+   eta.rts.stm.serialAfterAborts times in a row runs in serial mode: other
+   transactions neither start nor commit updates until it's done.
+
+   TSOs share the threads of their Capabilities, so a TSO that holds priority may
+   not be able to run while another waits for it. Priority lapses after twice the
+   time that the last attempt of the holder took, but no less than
+   PRIORITY_TIMEOUT_NANOS, to rule out deadlock. The holder claims it again when
+   it aborts once more.
+
+   The options are read when a transaction needs them, so changing them takes
+   effect for the transactions that abort afterwards. */
+public abstract class ContentionManager {
+    public static final long MIN_BACKOFF_NANOS      = 1000L;
+    public static final long MAX_BACKOFF_NANOS      = 1000000L;
+    public static final long PRIORITY_TIMEOUT_NANOS = 10000000L;
+    /* Waits shorter than this yield instead of parking, since parking is
+       much coarser. */
+    public static final long SPIN_LIMIT_NANOS       = 50000L;
+
+    /* Called after a transaction has aborted `aborts` times in a row, having
+       done `karma` work in all of these attempts. Priority that it claims lasts
+       for `timeout` nanoseconds. */
+    public abstract void aborted(TSO tso, int aborts, long karma, long timeout);
+
+    /* Called before a transaction tries to commit. */
+    public void committing(TSO tso, long karma) {}
+
+    /* The manager for the current value of eta.rts.stm.contentionManager. */
+    private static volatile Selection selection;
+
+    private static final class Selection {
+        final String name;
+        final ContentionManager manager;
+
+        Selection(String name, ContentionManager manager) {
+            this.name    = name;
+            this.manager = manager;
+        }
+    }
+
+    public static ContentionManager getManager() {
+        String name = Runtime.getSTMContentionManager();
+        Selection s = selection;
+        /* Comparing the references is enough to notice that the option was set
+           again, and it keeps this cheap on every commit. */
+        if (s == null || s.name != name) {
+            s = new Selection(name, create(name));
+            selection = s;
+        }
+        return s.manager;
+    }
+
+    public static ContentionManager create(String name) {
+        if ("backoff".equals(name)) {
+            return new BackoffContentionManager();
+        } else if ("karma".equals(name)) {
+            return new KarmaContentionManager();
+        } else {
+            if (!"none".equals(name)) {
+                errorBelch("Unknown STM contention manager '%s', using none.", name);
+            }
+            return new NoContentionManager();
+        }
+    }
+
+    public static class NoContentionManager extends ContentionManager {
+        @Override
+        public void aborted(TSO tso, int aborts, long karma, long timeout) {}
+    }
+
+    public static class BackoffContentionManager extends ContentionManager {
+        @Override
+        public void aborted(TSO tso, int aborts, long karma, long timeout) {
+            pause(ThreadLocalRandom.current().nextLong(backoffWindow(aborts)));
+        }
+
+        /* The pause after `aborts` aborts in a row is drawn from below this. */
+        static long backoffWindow(int aborts) {
+            return Math.min(MIN_BACKOFF_NANOS << Math.min(aborts - 1, 20),
+                            MAX_BACKOFF_NANOS);
+        }
+    }
+
+    public static class KarmaContentionManager extends BackoffContentionManager {
+        @Override
+        public void aborted(TSO tso, int aborts, long karma, long timeout) {
+            super.aborted(tso, aborts, karma, timeout);
+            Priority p;
+            do {
+                p = priority.get();
+                if (p != null && !p.hasExpired()
+                    && (p.serial || (p.owner != tso && p.karma >= karma))) {
+                    return;
+                }
+            } while (!priority.compareAndSet(p, new Priority(tso, karma, false, timeout)));
+        }
+
+        @Override
+        public void committing(TSO tso, long karma) {
+            awaitPriority(tso, karma);
+        }
+    }
+
+    /** Priority **/
+
+    private static final class Priority {
+        final TSO owner;
+        final long karma;
+        final boolean serial;
+        final long deadline;
+
+        Priority(TSO owner, long karma, boolean serial, long timeout) {
+            this.owner    = owner;
+            this.karma    = karma;
+            this.serial   = serial;
+            this.deadline = System.nanoTime() + timeout;
+        }
+
+        boolean hasExpired() {
+            return System.nanoTime() - deadline > 0;
+        }
+    }
+
+    private static final AtomicReference<Priority> priority
+        = new AtomicReference<Priority>();
+
+    /* Serial mode has more karma than any transaction. */
+    private static final long SERIAL_KARMA = Long.MAX_VALUE;
+
+    /* Waits while a transaction other than the one of the TSO holds priority
+       with more karma. */
+    private static void awaitPriority(TSO tso, long karma) {
+        Priority p;
+        long wait = MIN_BACKOFF_NANOS;
+        while ((p = priority.get()) != null && p.owner != tso && p.karma > karma
+               && !p.hasExpired()) {
+            pause(wait);
+            wait = Math.min(wait * 2, MAX_BACKOFF_NANOS);
+        }
+    }
+
+    /* Called before every attempt of a transaction. */
+    public static void starting(TSO tso) {
+        Priority p = priority.get();
+        if (p != null && p.serial && p.owner != tso) {
+            awaitPriority(tso, SERIAL_KARMA - 1);
+        }
+    }
+
+    /* Called after a transaction aborted because of a conflict, before it runs
+       again. `attemptStart` is the value returned for the previous attempt or 0
+       for the first one. Returns the time at which the next attempt starts. */
+    public static long restart(TSO tso, Closure code, int aborts, long karma,
+                               long attemptStart) {
+        recordAbort(code, aborts);
+        long timeout = PRIORITY_TIMEOUT_NANOS;
+        if (attemptStart != 0) {
+            timeout = Math.max(timeout, 2 * (System.nanoTime() - attemptStart));
+        }
+        int serialAfterAborts = Runtime.getSTMSerialAfterAborts();
+        if (serialAfterAborts > 0 && aborts >= serialAfterAborts) {
+            enterSerial(tso, timeout);
+        } else {
+            getManager().aborted(tso, aborts, karma, timeout);
+        }
+        starting(tso);
+        return System.nanoTime();
+    }
+
+    /* Called when a transaction commits, throws or blocks in retry. */
+    public static void finished(TSO tso) {
+        Priority p = priority.get();
+        if (p != null && p.owner == tso) {
+            priority.compareAndSet(p, null);
+        }
+    }
+
+    private static void enterSerial(TSO tso, long timeout) {
+        Priority p;
+        do {
+            p = priority.get();
+            if (p != null && p.serial && p.owner != tso && !p.hasExpired()) {
+                awaitPriority(tso, SERIAL_KARMA - 1);
+                p = priority.get();
+            }
+        } while (!priority.compareAndSet(p, new Priority(tso, SERIAL_KARMA, true, timeout)));
+    }
+
+    /* Whether a top-level transaction must not commit its updates because another
+       one is in serial mode. */
+    public static boolean yieldsToSerial(TransactionRecord trec) {
+        Priority p = priority.get();
+        return p != null && p.serial && p.owner.trec != trec && !p.hasExpired();
+    }
+
+    private static void pause(long nanos) {
+        if (nanos < SPIN_LIMIT_NANOS) {
+            long end = System.nanoTime() + nanos;
+            while (System.nanoTime() - end < 0) {
+                Thread.yield();
+            }
+        } else {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    /** Statistics **/
+
+    /* The number of aborts of the transactions run by atomically, by the class
+       of the STM action, which identifies where it was built. */
+    private static final ConcurrentHashMap<String, AtomicLong> abortsBySite
+        = new ConcurrentHashMap<String, AtomicLong>();
+
+    private static void recordAbort(Closure code, int aborts) {
+        String site = code.getClass().getName();
+        AtomicLong count = abortsBySite.get(site);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = abortsBySite.putIfAbsent(site, newCount);
+            if (count == null) count = newCount;
+        }
+        count.incrementAndGet();
+        if (Runtime.debugSTM()) {
+            debugSTM("Transaction " + site + " aborted " + aborts + " time(s) in a row.");
+        }
+    }
+
+    public static Map<String, Long> getAbortsBySite() {
+        Map<String, Long> aborts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e: abortsBySite.entrySet()) {
+            aborts.put(e.getKey(), e.getValue().get());
+        }
+        return aborts;
+    }
+}
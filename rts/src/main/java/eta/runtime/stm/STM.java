@@ -14,6 +14,8 @@ import eta.runtime.exception.StgException;
 import eta.runtime.exception.EtaException;
 import eta.runtime.exception.EtaAsyncException;
 import eta.runtime.exception.RetryException;
+import eta.runtime.exception.ConflictException;
+import static eta.runtime.stg.TSO.WhyBlocked.*;
 
 public class STM {
     /* STM RTS primops */
@@ -55,11 +57,18 @@ public class STM {
             return Exception.raise(context, Closures.nestedAtomically);
         } else {
             Queue<InvariantCheck> invariants = new LinkedList<InvariantCheck>();
-            TransactionRecord trec           = TransactionRecord.start(outer);
+            ContentionManager.starting(tso);
+            TransactionRecord trec           = TransactionRecord.start(tso);
             Capability cap                   = context.myCapability;
             Closure result                   = null;
             Closure frameResult              = null;
             boolean runCode                  = true;
+            /* The number of times in a row that the transaction aborted because
+               of a conflict, the size of the logs it discarded and when the
+               current attempt started, once it has aborted. */
+            int aborts                       = 0;
+            long karma                       = 0;
+            long attemptStart                = 0;
             tso.trec                         = trec;
             do {
                 try {
@@ -74,18 +83,22 @@ public class STM {
                         frameResult = result;
                     } else {
                         tso.trec = outer;
-                        invariants.peek().myExecution = trec;
+                        invariants.peek().myExecution = trec.detach();
                         trec.abort();
                         invariants.poll();
                         trec = outer;
                     }
                     if (invariants.isEmpty()) {
+                        ContentionManager.getManager().committing(tso, karma + trec.log.size());
                         boolean valid = trec.commit(cap);
                         if (valid) {
+                            ContentionManager.finished(tso);
                             tso.trec = null;
                             return frameResult;
                         } else {
-                            trec = TransactionRecord.start(null);
+                            karma += trec.log.size();
+                            attemptStart = ContentionManager.restart(tso, code, ++aborts, karma, attemptStart);
+                            trec = TransactionRecord.start(tso);
                             tso.trec = trec;
                             invariants.clear();
                             runCode = true;
@@ -110,6 +123,7 @@ public class STM {
                             outer = trec.enclosingTrec;
                             trec.abort();
                             tso.trec = outer;
+                            ContentionManager.finished(tso);
                             /* TODO: Apparently, we need to replace all thunks with
                                code that eventually retried the atomically
                                transaction.
@@ -120,6 +134,22 @@ public class STM {
                             */
                             throw e;
                         }
+                    } else if (e_ instanceof ConflictException) {
+                        /* The transaction read an inconsistent view, so it's
+                           doomed. */
+                        trec  = tso.trec;
+                        outer = trec.enclosingTrec;
+                        karma += trec.log.size();
+                        trec.abort();
+                        if (outer != null) {
+                            outer.abort();
+                        }
+                        attemptStart = ContentionManager.restart(tso, code, ++aborts, karma, attemptStart);
+                        trec     = TransactionRecord.start(tso);
+                        tso.trec = trec;
+                        invariants.clear();
+                        runCode  = true;
+                        continue;
                     } else if (e_ instanceof RetryException) {
                         RetryException e = (RetryException) e_;
 
@@ -132,6 +162,12 @@ public class STM {
                             outer    = trec.enclosingTrec;
                         }
                         assert outer == null;
+                        /* Waiting for another transaction to commit isn't
+                           contention. */
+                        ContentionManager.finished(tso);
+                        aborts       = 0;
+                        karma        = 0;
+                        attemptStart = 0;
                         boolean valid = trec.wait(tso);
                         if (valid) {
                             trec.revertOwnership(true);
@@ -139,9 +175,12 @@ public class STM {
                                 cap.blockedLoop();
                                 valid = trec.reWait(tso);
                             } while (valid);
+                            tso.whyBlocked = NotBlocked;
+                            tso.blockInfo  = null;
                         }
                         /* If the transaction is invalid, retry. */
-                        trec     = TransactionRecord.start(null);
+                        ContentionManager.starting(tso);
+                        trec     = TransactionRecord.start(tso);
                         tso.trec = trec;
                         runCode  = true;
                         continue;
@@ -155,15 +194,19 @@ public class STM {
                         trec = tso.trec;
                         boolean valid = trec.validateNestOfTransactions();
                         outer = trec.enclosingTrec;
+                        int work = trec.log.size();
                         trec.abort();
                         if (outer != null) {
                             outer.abort();
                         }
                         tso.trec = null;
                         if (valid) {
+                            ContentionManager.finished(tso);
                             throw e;
                         } else {
-                            trec = TransactionRecord.start(null);
+                            karma += work;
+                            attemptStart = ContentionManager.restart(tso, code, ++aborts, karma, attemptStart);
+                            trec = TransactionRecord.start(tso);
                             tso.trec = trec;
                             runCode = true;
                             continue;
@@ -2,6 +2,7 @@ package eta.runtime.stm;
 
 import java.util.Set;
 import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import eta.runtime.stg.Capability;
@@ -15,9 +16,15 @@ import static eta.runtime.RuntimeLogging.barf;
 
 public class TVar extends Value {
     public volatile Closure currentValue;
-    public Set<TSO> watchQueue = new LinkedHashSet<TSO>();
+    public final WatchQueue watchQueue = new WatchQueue();
     public Set<AtomicInvariant> invariants = new LinkedHashSet<AtomicInvariant>();
-    public int numUpdates;
+    /* The value of the global version clock at the last commit that updated it. */
+    public volatile long version;
+    /* Spreads the TVars over the index of a TransactionLog. */
+    public final int hash = nextHash.getAndAdd(HASH_INCREMENT);
+
+    private static final AtomicInteger nextHash = new AtomicInteger();
+    private static final int HASH_INCREMENT = 0x61c88647;
 
     public TVar(Closure currentValue) {
         this.currentValue = currentValue;
@@ -33,18 +40,16 @@ public class TVar extends Value {
 
     /** Watch Queue **/
 
-    public void removeFromWatchQueue(TSO tso) {
-        watchQueue.remove(tso);
+    public void removeFromWatchQueue(WatchQueue.Waiter waiter) {
+        watchQueue.remove(waiter);
     }
 
-    public void offerWatchQueue(TSO tso) {
-        watchQueue.add(tso);
+    public WatchQueue.Waiter offerWatchQueue(TSO tso, Closure expected) {
+        return watchQueue.add(tso, expected);
     }
 
-    public void unparkWaiters(Capability c) {
-        for (TSO tso: watchQueue) {
-            tso.unpark(c);
-        }
+    public void unparkWaiters(Closure newValue) {
+        watchQueue.wake(newValue);
     }
 
     /** Invariants **/
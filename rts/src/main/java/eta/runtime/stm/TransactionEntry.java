@@ -6,7 +6,12 @@ public class TransactionEntry {
     public TVar    tvar;
     public Closure expectedValue;
     public Closure newValue;
-    public int     numUpdates;
+    public long    version;
+    /* The index of the entry of the same TVar in an enclosing transaction or -1
+       if there is none. */
+    public int     outer = -1;
+    /* Set while the transaction is waiting in retry. */
+    public WatchQueue.Waiter waiter;
 
     public TransactionEntry(TVar tvar, Closure expected, Closure updated) {
         this.tvar          = tvar;
@@ -0,0 +1,193 @@
+package eta.runtime.stm;
+
+import java.util.Arrays;
+
+import eta.runtime.stg.Closure;
+
+/* The reads and writes of a nest of transactions. Each TSO keeps one log and
+   reuses it for all of its transactions, so the entries are recycled instead of
+   allocated once the log has grown to the size of its transactions.
+
+   A nested transaction owns the entries from the size of the log when it started
+   onwards, so it's entered by remembering that index and left by merging its
+   entries into the enclosing transaction or rolling them back. The entry of a
+   TVar in a nested transaction always comes after the entries of the same TVar
+   in the enclosing transactions and points to the innermost of them. Searching
+   from the end of the log finds the innermost entry, which is what small logs
+   do. Larger logs keep an open-addressed index from each TVar to it instead. */
+public final class TransactionLog {
+    /* Logs with up to this many entries are searched linearly. */
+    public static final int INDEX_THRESHOLD = 8;
+    /* Logs that grew beyond this many entries aren't kept for the next
+       transaction. */
+    public static final int MAX_RETAINED_ENTRIES = 4096;
+
+    private TransactionEntry[] entries = new TransactionEntry[INDEX_THRESHOLD];
+    private int size;
+    /* Linear probing table of entry indices plus one, where 0 is an empty slot.
+       The table is kept across transactions, but only used when indexed is set. */
+    private int[] index;
+    private boolean indexed;
+
+    public int size() {
+        return size;
+    }
+
+    public TransactionEntry get(int i) {
+        return entries[i];
+    }
+
+    /* Returns the index of the innermost entry of the TVar or -1 if there is
+       none. */
+    public int find(TVar tvar) {
+        if (indexed) {
+            int mask = index.length - 1;
+            for (int slot = tvar.hash & mask;; slot = (slot + 1) & mask) {
+                int i = index[slot] - 1;
+                if (i < 0) return -1;
+                if (entries[i].tvar == tvar) return i;
+            }
+        } else {
+            for (int i = size - 1; i >= 0; i--) {
+                if (entries[i].tvar == tvar) return i;
+            }
+            return -1;
+        }
+    }
+
+    /* Appends an entry of a TVar that isn't in the current transaction yet.
+       `outer` is the index of its entry in an enclosing transaction or -1. */
+    public TransactionEntry add(TVar tvar, Closure expected, Closure updated, int outer) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        TransactionEntry e = entries[size];
+        if (e == null) {
+            e = new TransactionEntry(tvar, expected, updated);
+            entries[size] = e;
+        } else {
+            e.tvar          = tvar;
+            e.expectedValue = expected;
+            e.newValue      = updated;
+            e.version       = 0;
+        }
+        e.outer = outer;
+        int i = size++;
+        if (indexed) {
+            if (size * 2 > index.length) {
+                rebuildIndex();
+            } else {
+                setIndex(tvar, i);
+            }
+        } else if (size > INDEX_THRESHOLD) {
+            rebuildIndex();
+        }
+        return e;
+    }
+
+    /* Merges the entries of a nested transaction that starts at `start` into the
+       transaction that encloses it. Entries that point to an entry at or after
+       `into` are dropped, since the caller has merged them into that entry
+       already. The rest are kept and now belong to the enclosing transaction. */
+    public void merge(int start, int into) {
+        int kept = start;
+        for (int i = start; i < size; i++) {
+            TransactionEntry e = entries[i];
+            if (e.outer >= into) {
+                if (indexed) setIndex(e.tvar, e.outer);
+            } else {
+                if (kept != i) {
+                    if (indexed) setIndex(e.tvar, kept);
+                    entries[i]    = entries[kept];
+                    entries[kept] = e;
+                }
+                kept++;
+            }
+        }
+        clear(kept);
+    }
+
+    /* Discards the entries from `start` onwards. */
+    public void rollback(int start) {
+        if (indexed) {
+            for (int i = size - 1; i >= start; i--) {
+                TransactionEntry e = entries[i];
+                if (e.outer >= 0) {
+                    setIndex(e.tvar, e.outer);
+                } else {
+                    removeIndex(e.tvar);
+                }
+            }
+        }
+        clear(start);
+    }
+
+    /* Discards all the entries so that the log can be used by the next
+       transaction. */
+    public void reset() {
+        if (entries.length > MAX_RETAINED_ENTRIES) {
+            entries = new TransactionEntry[INDEX_THRESHOLD];
+            index   = null;
+            size    = 0;
+        } else {
+            clear(0);
+            if (indexed) {
+                Arrays.fill(index, 0);
+            }
+        }
+        indexed = false;
+    }
+
+    /* Drops the references held by the entries from `newSize` onwards so that
+       the values don't outlive the transaction. */
+    private void clear(int newSize) {
+        for (int i = newSize; i < size; i++) {
+            TransactionEntry e = entries[i];
+            e.tvar          = null;
+            e.expectedValue = null;
+            e.newValue      = null;
+            e.waiter        = null;
+        }
+        size = newSize;
+    }
+
+    private void rebuildIndex() {
+        int capacity = Integer.highestOneBit(size * 4 - 1) << 1;
+        if (index == null || index.length < capacity) {
+            index = new int[capacity];
+        } else {
+            Arrays.fill(index, 0);
+        }
+        indexed = true;
+        for (int i = 0; i < size; i++) {
+            setIndex(entries[i].tvar, i);
+        }
+    }
+
+    private void setIndex(TVar tvar, int i) {
+        int mask = index.length - 1;
+        int slot = tvar.hash & mask;
+        while (index[slot] != 0 && entries[index[slot] - 1].tvar != tvar) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = i + 1;
+    }
+
+    /* Removes the TVar from the index by shifting back the entries that probed
+       past it, so that no tombstones are needed. */
+    private void removeIndex(TVar tvar) {
+        int mask = index.length - 1;
+        int hole = tvar.hash & mask;
+        while (entries[index[hole] - 1].tvar != tvar) {
+            hole = (hole + 1) & mask;
+        }
+        for (int slot = (hole + 1) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int home = entries[index[slot] - 1].tvar.hash & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                index[hole] = index[slot];
+                hole = slot;
+            }
+        }
+        index[hole] = 0;
+    }
+}
@@ -2,26 +2,34 @@ package eta.runtime.stm;
 
 import java.util.Collection;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eta.runtime.stg.Value;
 import eta.runtime.stg.Capability;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.StgContext;
 import eta.runtime.stg.TSO;
+import eta.runtime.exception.ConflictException;
 
 import static eta.runtime.RuntimeLogging.barf;
 import static eta.runtime.stm.TransactionRecord.State.*;
 
 public class TransactionRecord extends Value implements Iterable<TransactionEntry> {
     public TransactionRecord enclosingTrec;
-    public Map<TVar, TransactionEntry> entries = new HashMap<TVar, TransactionEntry>();
-    public Map<AtomicInvariant, InvariantCheck> invariantsToCheck
-        = new LinkedHashMap<AtomicInvariant, InvariantCheck>();
+    /* Shared by the whole nest of transactions. The entries of this transaction
+       start at `start`. */
+    public final TransactionLog log;
+    public final int start;
+    /* Allocated by the first invariant that needs to be checked. */
+    public Map<AtomicInvariant, InvariantCheck> invariantsToCheck;
     public State state;
+    /* The version of the global clock that everything read so far is consistent
+       with. It's shared by the whole nest of transactions. */
+    public long readVersion;
     public enum State {
         TREC_ACTIVE,
         TREC_CONDEMNED,
@@ -30,101 +38,154 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         TREC_WAITING
     }
 
-    public TransactionRecord(TransactionRecord enclosingTrec) {
+    /* The Global Version Clock
+       Every commit that updates TVars ticks the clock and stamps them with the
+       new version. A transaction starts with the current version and checks each
+       TVar it reads against it, so that its reads are always consistent with each
+       other and a commit only has to validate them again if other transactions
+       have committed in the meantime. */
+    private static final AtomicLong clock = new AtomicLong();
+
+    private TransactionRecord(TransactionRecord enclosingTrec, TransactionLog log) {
         this.enclosingTrec = enclosingTrec;
+        this.log           = log;
+        this.start         = log.size();
         if (enclosingTrec == null) {
-            this.state = TREC_ACTIVE;
+            this.state       = TREC_ACTIVE;
+            this.readVersion = clock.get();
         } else {
             assert enclosingTrec.state == TREC_ACTIVE
                 || enclosingTrec.state == TREC_CONDEMNED;
-            this.state = enclosingTrec.state;
+            this.state       = enclosingTrec.state;
+            this.readVersion = enclosingTrec.readVersion;
         }
     }
 
-    public static TransactionRecord start(TransactionRecord enclosing) {
-        return new TransactionRecord(enclosing);
-    }
-
-    public static class EntrySearchResult {
-        public final TransactionRecord header;
-        public final TransactionEntry entry;
-        public EntrySearchResult(final TransactionRecord header, final TransactionEntry entry) {
-            this.header = header;
-            this.entry = entry;
+    /* Starts a top-level transaction with the log of the TSO. */
+    public static TransactionRecord start(TSO tso) {
+        TransactionLog log = tso.transactionLog;
+        if (log == null) {
+            log = new TransactionLog();
+            tso.transactionLog = log;
+        } else {
+            log.reset();
         }
+        return new TransactionRecord(null, log);
     }
 
-    public EntrySearchResult getNested(TVar tvar) {
-        TransactionEntry entry = null;
-        TransactionRecord trec = this;
-        do {
-            entry = get(tvar);
-        } while (entry == null && ((trec = trec.enclosingTrec) != null));
-        return (entry == null? null:new EntrySearchResult(trec, entry));
+    /* Starts a transaction nested in the innermost transaction of a nest. */
+    public static TransactionRecord start(TransactionRecord enclosing) {
+        return new TransactionRecord(enclosing, enclosing.log);
     }
 
-    public TransactionEntry get(TVar tvar) {
-        return entries.get(tvar);
+    /* Copies the entries of this transaction into a log of their own, so that
+       they outlive the nest. This is used to remember the last execution of an
+       invariant. */
+    public TransactionRecord detach() {
+        TransactionLog copy = new TransactionLog();
+        TransactionRecord trec = new TransactionRecord(enclosingTrec, copy);
+        for (int i = start; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
+            copy.add(e.tvar, e.expectedValue, e.newValue, -1);
+        }
+        trec.state       = state;
+        trec.readVersion = readVersion;
+        return trec;
     }
 
-    public void put(TVar tvar, Closure expected, Closure updated) {
-        entries.put(tvar, new TransactionEntry(tvar, expected, updated));
+    /* Returns the transaction of the nest that owns the i-th entry of the log. */
+    private TransactionRecord ownerOf(int i) {
+        TransactionRecord t = this;
+        while (i < t.start) {
+            t = t.enclosingTrec;
+        }
+        return t;
     }
 
     public Closure read(TVar tvar) {
         assert state == TREC_ACTIVE || state == TREC_CONDEMNED;
-        Closure result = null;
-        EntrySearchResult searchResult = getNested(tvar);
-        TransactionRecord entryIn      = null;
-        TransactionEntry  entry        = null;
-        if (searchResult != null) {
-            entryIn = searchResult.header;
-            entry   = searchResult.entry;
-        }
-        if (entry != null) {
-            if (entryIn != this) {
-                /* If the entry was found in a parent TRec, copy the entry to
-                   the current trec, since you have just read it in the
-                   current transaction. */
-                put(tvar, entry.expectedValue, entry.newValue);
-            }
-            result = entry.newValue;
+        /* An entry of an enclosing transaction is used as it is, since its reads
+           are merged into the enclosing transaction when this one finishes. */
+        int i = log.find(tvar);
+        if (i >= 0) {
+            return log.get(i).newValue;
         } else {
-            Closure currentValue = tvar.currentValue();
-            put(tvar, currentValue, currentValue);
-            result = currentValue;
+            Closure currentValue = readConsistent(tvar);
+            log.add(tvar, currentValue, currentValue, -1);
+            return currentValue;
         }
-        return result;
+    }
+
+    /* Reads a TVar for the first time in this nest. If it has been updated since
+       the read version, the read version is extended if nothing read so far has
+       changed, otherwise the transaction is doomed and it's restarted right away. */
+    private Closure readConsistent(TVar tvar) {
+        for (;;) {
+            long version  = tvar.version;
+            Closure value = tvar.currentValue();
+            if (version != tvar.version) continue;
+            if (version <= readVersion) return value;
+            if (!extendReadVersion()) throw ConflictException.INSTANCE;
+        }
+    }
+
+    private boolean extendReadVersion() {
+        long newReadVersion = clock.get();
+        for (int i = 0; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
+            if (e.tvar.currentValue != e.expectedValue) return false;
+        }
+        for (TransactionRecord t = this; t != null; t = t.enclosingTrec) {
+            t.readVersion = newReadVersion;
+        }
+        return true;
     }
 
     public void write(TVar tvar, Closure newValue) {
-        EntrySearchResult searchResult = getNested(tvar);
-        TransactionRecord entryIn      = null;
-        TransactionEntry  entry        = null;
-        if (searchResult != null) {
-            entryIn = searchResult.header;
-            entry   = searchResult.entry;
-        }
-        if (entry != null) {
-            if (entryIn == this) {
-                entry.newValue = newValue;
-            } else {
-                put(tvar, entry.expectedValue, newValue);
-            }
+        int i = log.find(tvar);
+        if (i >= start) {
+            log.get(i).newValue = newValue;
+        } else if (i >= 0) {
+            log.add(tvar, log.get(i).expectedValue, newValue, i);
         } else {
             Closure currentValue = tvar.currentValue();
-            put(tvar, currentValue, newValue);
+            log.add(tvar, currentValue, newValue, -1);
         }
     }
 
     @Override
     public Iterator<TransactionEntry> iterator() {
-        return entries.values().iterator();
+        return new Iterator<TransactionEntry>() {
+            private int i = start;
+
+            @Override
+            public boolean hasNext() {
+                return i < log.size();
+            }
+
+            @Override
+            public TransactionEntry next() {
+                if (i >= log.size()) throw new NoSuchElementException();
+                return log.get(i++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     public void checkInvariant(Closure invariantCode) {
         assert state == TREC_ACTIVE || state == TREC_CONDEMNED;
         AtomicInvariant inv = new AtomicInvariant(invariantCode);
+        addInvariantToCheck(inv);
+    }
+
+    private void addInvariantToCheck(AtomicInvariant inv) {
+        if (invariantsToCheck == null) {
+            invariantsToCheck = new LinkedHashMap<AtomicInvariant, InvariantCheck>();
+        }
         invariantsToCheck.put(inv, new InvariantCheck(inv));
     }
 
@@ -138,19 +199,22 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
            and adds them to invariants to check for the TRec if they don't
            exist already.
         */
-        for(TransactionEntry e: entries.values()) {
+        for (int i = 0; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
             if (e.isUpdate()) {
                 TVar s = e.tvar;
                 Closure old = s.lock(this);
                 for (AtomicInvariant inv: s.getInvariants()) {
-                    if (invariantsToCheck.get(inv) == null) {
-                        invariantsToCheck.put(inv, new InvariantCheck(inv));
+                    if (invariantsToCheck == null || invariantsToCheck.get(inv) == null) {
+                        addInvariantToCheck(inv);
                     }
                 }
                 s.unlock(old);
             }
         }
-        drainTo.addAll(invariantsToCheck.values());
+        if (invariantsToCheck != null) {
+            drainTo.addAll(invariantsToCheck.values());
+        }
     }
 
     public void abort() {
@@ -161,24 +225,33 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
             if (state == TREC_WAITING) {
                 removeWatchQueueEntries();
             }
+            log.reset();
         } else {
-            for (TransactionEntry e: entries.values()) {
-                enclosingTrec.mergeReadInto(e.tvar, e.expectedValue);
+            /* The reads are merged into the enclosing transaction. The entries
+               of TVars that an enclosing transaction has already are dropped and
+               the rest are turned into reads. */
+            for (int i = start; i < log.size(); i++) {
+                TransactionEntry e = log.get(i);
+                if (e.outer >= 0) {
+                    if (log.get(e.outer).expectedValue != e.expectedValue) {
+                        enclosingTrec.ownerOf(e.outer).state = TREC_CONDEMNED;
+                    }
+                } else {
+                    e.newValue = e.expectedValue;
+                }
             }
+            log.merge(start, 0);
         }
     }
 
     public void mergeReadInto(TVar tvar, Closure expectedValue) {
-        TransactionRecord t = this;
-        TransactionEntry e = null;
-        do {
-            e = t.get(tvar);
-            if (e != null && e.expectedValue != expectedValue) {
-                t.state = TREC_CONDEMNED;
+        int i = log.find(tvar);
+        if (i >= 0) {
+            if (log.get(i).expectedValue != expectedValue) {
+                ownerOf(i).state = TREC_CONDEMNED;
             }
-        } while (e == null && ((t = t.enclosingTrec) != null));
-        if (e == null) {
-            put(tvar, expectedValue, expectedValue);
+        } else {
+            log.add(tvar, expectedValue, expectedValue, -1);
         }
     }
 
@@ -186,12 +259,12 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         assert enclosingTrec == null;
         assert state == TREC_WAITING
             || state == TREC_CONDEMNED;
-        for (TransactionEntry e:entries.values()) {
-            TVar s = e.tvar;
-            Closure saw = s.lock(this);
-            assert s.currentValue == this;
-            s.removeFromWatchQueue((TSO) e.newValue);
-            s.unlock(saw);
+        for (int i = 0; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
+            if (e.waiter != null) {
+                e.tvar.removeFromWatchQueue(e.waiter);
+                e.waiter = null;
+            }
         }
     }
 
@@ -199,7 +272,7 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         assert enclosingTrec == null;
         assert state == TREC_ACTIVE
             || state == TREC_CONDEMNED;
-        boolean touchedInvariants = !invariantsToCheck.isEmpty();
+        boolean touchedInvariants = invariantsToCheck != null && !invariantsToCheck.isEmpty();
         if (touchedInvariants) {
             for (InvariantCheck q: invariantsToCheck.values()) {
                 AtomicInvariant inv = q.invariant;
@@ -216,16 +289,37 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
             }
         }
         boolean useReadPhase = !touchedInvariants;
-        boolean result = validateAndAcquireOwnership(!useReadPhase, true);
-        if (result) {
-            assert state == TREC_ACTIVE;
-            if (useReadPhase) {
-                /* TODO: Handle token verification here. We currently bypass the
-                         need for this by using long's, so we are essentially
-                         guaranteed to avoid overflows. */
+        long writeVersion = 0;
+        boolean result;
+        if (useReadPhase) {
+            /* Only the updates are locked. The reads were consistent as of the read
+               version, so they only need to be validated again if another
+               transaction has committed since then. A read-only transaction
+               doesn't need to do anything. */
+            int updates = acquireUpdates();
+            result = updates >= 0;
+            if (updates > 0) {
+                if (ContentionManager.yieldsToSerial(this)) {
+                    result = false;
+                } else {
+                    writeVersion = clock.incrementAndGet();
+                    if (writeVersion != readVersion + 1) {
+                        result = validateReads();
+                    }
+                }
+            }
+        } else {
+            result = validateAndAcquireOwnership(true, true);
+            if (result && ContentionManager.yieldsToSerial(this)) {
+                revertOwnership(true);
+                result = false;
+            }
+            if (result) {
+                writeVersion = clock.incrementAndGet();
             }
         }
         if (result) {
+            assert state == TREC_ACTIVE;
             if (touchedInvariants) {
                 for (InvariantCheck q: invariantsToCheck.values()) {
                     AtomicInvariant inv = q.invariant;
@@ -237,29 +331,62 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
                 }
             }
 
-            for (TransactionEntry e: entries.values()) {
+            for (int i = 0; i < log.size(); i++) {
+                TransactionEntry e = log.get(i);
                 TVar s = e.tvar;
                 if (!useReadPhase || e.isUpdate()) {
                     assert s.isLocked(this);
-                    s.unparkWaiters(cap);
-                    s.numUpdates++;
+                    if (e.isUpdate()) {
+                        s.unparkWaiters(e.newValue);
+                        s.version = writeVersion;
+                    }
                     s.unlock(e.newValue);
                 }
                 assert !s.isLocked(this);
             }
+            log.reset();
         } else {
             revertOwnership(false);
         }
         return result;
     }
 
+    /* Returns the number of updates that were locked or -1 if any of them
+       couldn't be. */
+    private int acquireUpdates() {
+        if (state == TREC_CONDEMNED) return -1;
+        int updates = 0;
+        for (int i = 0; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
+            if (e.isUpdate()) {
+                if (!e.tvar.conditionalLock(this, e.expectedValue)) {
+                    revertOwnership(false);
+                    return -1;
+                }
+                updates++;
+            }
+        }
+        return updates;
+    }
+
+    private boolean validateReads() {
+        for (int i = 0; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
+            if (e.isReadOnly() && e.tvar.currentValue != e.expectedValue) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public boolean validateAndAcquireOwnership(boolean acquireAll, boolean retainOwnership) {
         assert state == TREC_ACTIVE
             || state == TREC_WAITING
             || state == TREC_CONDEMNED;
         boolean result = !(state == TREC_CONDEMNED);
         if (result) {
-            for (TransactionEntry e:entries.values()) {
+            for (int i = start; i < log.size(); i++) {
+                TransactionEntry e = log.get(i);
                 TVar s = e.tvar;
                 if (acquireAll || e.isUpdate()) {
                     if (!s.conditionalLock(this, e.expectedValue)) {
@@ -271,7 +398,7 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
                         result = false;
                         break;
                     }
-                    e.numUpdates = s.numUpdates;
+                    e.version = s.version;
                     if (s.currentValue != e.expectedValue) {
                         result = false;
                         break;
@@ -287,7 +414,8 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
     }
 
     public void revertOwnership(boolean revertAll) {
-        for (TransactionEntry e:entries.values()) {
+        for (int i = start; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
             if (revertAll || e.isUpdate()) {
                 TVar s = e.tvar;
                 if (s.isLocked(this)) {
@@ -299,11 +427,12 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
 
     public void connectInvariant(AtomicInvariant inv, TransactionRecord myExecution) {
         assert inv.lastExecution == null;
+        TransactionLog enclosingLog = myExecution.enclosingTrec.log;
         for (TransactionEntry e:myExecution) {
             TVar s = e.tvar;
-            EntrySearchResult result = myExecution.enclosingTrec.getNested(s);
-            if (result != null) {
-                TransactionEntry entry = result.entry;
+            int i = enclosingLog.find(s);
+            if (i >= 0) {
+                TransactionEntry entry = enclosingLog.get(i);
                 e.expectedValue = entry.newValue;
                 e.newValue = entry.newValue;
             }
@@ -360,11 +489,11 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
     public void buildWatchQueueEntries(TSO tso) {
         assert enclosingTrec == null;
         assert state == TREC_ACTIVE;
-        for (TransactionEntry e:entries.values()) {
+        for (int i = 0; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
             TVar s = e.tvar;
             assert s.currentValue == this;
-            s.offerWatchQueue(tso);
-            e.newValue = tso;
+            e.waiter = s.offerWatchQueue(tso, e.expectedValue);
         }
     }
 
@@ -386,40 +515,44 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         if (valid) {
             valid = checkReadOnly();
             if (valid) {
-                for (TransactionEntry e:entries.values()) {
+                /* The updates are merged into the entries of the enclosing
+                   transaction and the entries it doesn't have become its own. */
+                int enclosingStart = enclosingTrec.start;
+                for (int i = start; i < log.size(); i++) {
+                    TransactionEntry e = log.get(i);
                     TVar s = e.tvar;
                     if (e.isUpdate()) {
                         s.unlock(e.expectedValue);
                     }
-                    enclosingTrec.mergeUpdateInto(s, e.expectedValue, e.newValue);
+                    if (e.outer >= enclosingStart) {
+                        TransactionEntry entry = log.get(e.outer);
+                        if (entry.expectedValue != e.expectedValue) {
+                            enclosingTrec.state = TREC_CONDEMNED;
+                        }
+                        entry.newValue = e.newValue;
+                    }
                     assert s.currentValue != this;
                 }
+                log.merge(start, enclosingStart);
             } else {
                 revertOwnership(false);
             }
         }
-        return valid;
-    }
-
-    public void mergeUpdateInto(TVar tvar, Closure expectedValue, Closure newValue) {
-        TransactionEntry e = get(tvar);
-        if (e == null) {
-            put(tvar, expectedValue, newValue);
-        } else {
-            if (e.expectedValue != expectedValue) {
-                state = TREC_CONDEMNED;
-            }
-            e.newValue = newValue;
+        if (!valid) {
+            /* The caller runs the transaction again from scratch. */
+            log.rollback(start);
         }
+        return valid;
     }
 
     public boolean checkReadOnly() {
         boolean valid = true;
-        for (TransactionEntry e:entries.values()) {
+        for (int i = start; i < log.size(); i++) {
+            TransactionEntry e = log.get(i);
             TVar s = e.tvar;
             if (e.isReadOnly()) {
                 if (s.currentValue != e.expectedValue ||
-                    s.numUpdates != e.numUpdates) {
+                    s.version != e.version) {
                     valid = false;
                     break;
                 }
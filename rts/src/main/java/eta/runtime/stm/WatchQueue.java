@@ -0,0 +1,117 @@
+package eta.runtime.stm;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.TSO;
+
+/* The TSOs that are blocked in retry after reading a TVar.
+
+   Waiters are pushed onto the head of a singly-linked list and removed by
+   marking them, so neither needs the lock of the TVar. Marked waiters are
+   unlinked by the holder of the TVar lock when it wakes the waiters, or when
+   enough of them have accumulated while it adds a new one, so there's only ever
+   one thread unlinking at a time. */
+public final class WatchQueue {
+    volatile Waiter head;
+    /* The number of waiters in the list, counting the removed ones. Only
+       updated under the TVar lock. */
+    private int size;
+    private volatile int removed;
+
+    public static final class Waiter {
+        public final TSO tso;
+        /* The value of the TVar that the TSO read. It doesn't need to wake up
+           for commits that leave it unchanged. */
+        public final Closure expected;
+        volatile Waiter next;
+        volatile boolean isRemoved;
+
+        Waiter(TSO tso, Closure expected) {
+            this.tso      = tso;
+            this.expected = expected;
+        }
+    }
+
+    /* Must be called with the TVar locked. */
+    public Waiter add(TSO tso, Closure expected) {
+        if (removed > size / 2) {
+            unlinkRemoved();
+        }
+        Waiter w = new Waiter(tso, expected);
+        Waiter h;
+        do {
+            h = head;
+            w.next = h;
+        } while (!headUpdater.compareAndSet(this, h, w));
+        size++;
+        return w;
+    }
+
+    public void remove(Waiter w) {
+        if (!w.isRemoved) {
+            w.isRemoved = true;
+            removedUpdater.incrementAndGet(this);
+        }
+    }
+
+    /* Wakes the waiters that read a value other than newValue. Must be called
+       with the TVar locked. */
+    public void wake(Closure newValue) {
+        Waiter prev = null;
+        Waiter w = head;
+        while (w != null) {
+            Waiter next = w.next;
+            if (w.isRemoved) {
+                prev = unlink(prev, w, next);
+            } else {
+                if (w.expected != newValue) {
+                    w.tso.unpark();
+                }
+                prev = w;
+            }
+            w = next;
+        }
+    }
+
+    private void unlinkRemoved() {
+        Waiter prev = null;
+        Waiter w = head;
+        while (w != null) {
+            Waiter next = w.next;
+            if (w.isRemoved) {
+                prev = unlink(prev, w, next);
+            } else {
+                prev = w;
+            }
+            w = next;
+        }
+    }
+
+    /* Unlinks w and returns the waiter that precedes next afterwards. The head
+       may have been replaced by a concurrent add, in which case the new
+       predecessor of w is found from the new head. */
+    private Waiter unlink(Waiter prev, Waiter w, Waiter next) {
+        if (prev == null) {
+            if (!headUpdater.compareAndSet(this, w, next)) {
+                prev = head;
+                while (prev.next != w) {
+                    prev = prev.next;
+                }
+                prev.next = next;
+            }
+        } else {
+            prev.next = next;
+        }
+        size--;
+        removedUpdater.decrementAndGet(this);
+        return prev;
+    }
+
+    private static final AtomicReferenceFieldUpdater<WatchQueue, Waiter> headUpdater
+        = AtomicReferenceFieldUpdater.newUpdater(WatchQueue.class, Waiter.class, "head");
+
+    private static final AtomicIntegerFieldUpdater<WatchQueue> removedUpdater
+        = AtomicIntegerFieldUpdater.newUpdater(WatchQueue.class, "removed");
+}
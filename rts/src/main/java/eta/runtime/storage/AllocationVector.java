@@ -7,18 +7,30 @@ import java.util.LinkedList;
    - 00 (0x0) - Non-terminal free bit
    - 01 (0x1) - Terminal free bit
    - 11 (0x3) - Non-terminal allocated bit
-   - 10 (0x2) - Terminal allocated bit */
+   - 10 (0x2) - Terminal allocated bit
+
+   The elements are packed 32 to a word, lowest bits first, so that the searches
+   can skip over whole words with bit tricks instead of looking at each element.
+   The elements that pad out the last word are marked as terminal allocated so
+   that they're never considered free. */
 public class AllocationVector {
 
     private static final int HIGH_BIT_MASK = 0x80000000;
-    private final byte[] vector;
+    /* The low bit of every element. */
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    private final long[] vector;
+    private final int numElements;
+    private final int numPadding;
+    private int numFree;
 
     /* State's binary representation can be of two forms:
        - 0...: The corresponding block is only capable of straight-line allocation
                and the numerical value of this corresponds to the next available index.
        - 1...: The corresponding block has interspersed free regions and the value
-               after masking the leading bit corresponds to the maximum length of
-               contiguous free blocks. */
+               after masking the leading bit is an upper bound on the maximum length
+               of contiguous free blocks. It's raised on every free, but only
+               lowered again when a search for a free region fails. */
     private int state;
 
     public AllocationVector(int numElements) {
@@ -28,13 +40,24 @@ public class AllocationVector {
         } else if (numElements <= 0) {
             throw new IllegalArgumentException("AllocationVector must have a number of elements that is non-negative.");
         }
-        vector = new byte[numElements >>> 2];
-        vector[vector.length - 1] = 0x40;
+        this.vector      = new long[(numElements + 31) >>> 5];
+        this.numElements = numElements;
+        this.numPadding  = (vector.length << 5) - numElements;
+        setBits(numElements - 1, 0x1);
+        for (int i = numElements; i < (vector.length << 5); i++) {
+            setBits(i, 0x2);
+        }
+        numFree = numElements;
         state = 0;
     }
 
+    /* Returns the elements in the byte-per-4-elements layout. */
     public final byte[] getBytes() {
-        return vector;
+        byte[] bytes = new byte[numElements >>> 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (vector[i >>> 3] >>> ((i & 7) << 3));
+        }
+        return bytes;
     }
 
     public final boolean isEmpty() {
@@ -42,7 +65,7 @@ public class AllocationVector {
     }
 
     public final int size() {
-        return vector.length << 2;
+        return numElements;
     }
 
     /* Fast, straight-line allocation */
@@ -52,6 +75,7 @@ public class AllocationVector {
             return -1;
         allocate(idx, n, false);
         state += n;
+        numFree -= n;
         return idx;
     }
 
@@ -60,142 +84,78 @@ public class AllocationVector {
     }
 
     public final void allocate(int i, int n, boolean recompute) {
-        int off = i & 0x3;
-        int idx = i >>> 2;
-        while (n-- > 0) {
-            vector[idx] |= 0x3 << (off << 1);
-            if (n == 0) {
-                vector[idx] &= ~(0x1 << (off << 1));
-            } else if (off == 3) {
-                off = 0;
-                idx++;
-            } else {
-                off++;
-            }
+        if (n > 0) {
+            int last = i + n - 1;
+            orRange(i, last);
+            setBits(last, 0x2);
         }
         if (recompute) {
             recomputeState();
         }
     }
 
+    /* Allocation from a free region found by findFree(). The state stays valid
+       since the maximum free region can only shrink. */
+    private final void allocateFound(int i, int n) {
+        allocate(i, n, false);
+        numFree -= n;
+    }
+
     public final int free(int i) {
-        int n = 1;
-        int off, idx;
-        if (i > 0) {
-            i--;
-            off = i & 0x3;
-            idx = i >>> 2;
-            if (bits(vector[idx], off) == 0x1) {
-                vector[idx] &= ~(0x3 << (off << 1));
-            }
-            i++;
+        int start = i;
+        /* Coalesce with a preceding free region. */
+        if (i > 0 && bits(i - 1) == 0x1) {
+            setBits(i - 1, 0x0);
+            start = previous(FREE_BOUNDARY, i - 1) + 1;
         }
-        off = i & 0x3;
-        idx = i >>> 2;
-        int val = vector[idx];
-        while (bits(val, off) != 0x2) {
-            val &= ~(0x3 << (off << 1));
-            n++;
-            if (off == 3) {
-                off = 0;
-                vector[idx] = (byte) val;
-                idx++;
-                val = vector[idx];
-            } else {
-                off++;
-            }
+        int last = findTerminalAllocated(i);
+        if (last == -1) {
+            throw new IllegalArgumentException("Cannot free illegal index " + i + ".");
         }
-        int prevIdx = idx;
-        int prevOff = off << 1;
-        val &= ~(0x3 << prevOff);
-        if (off == 3) {
-            off = 0;
-            idx++;
+        clearRange(i, last);
+        int end = last;
+        /* Coalesce with a following free region. */
+        if (last + 1 >= numElements || bits(last + 1) != 0x0) {
+            setBits(last, 0x1);
         } else {
-            off++;
+            end = next(TERMINAL_FREE, last + 1);
         }
-        if (idx >= vector.length || bits(vector[idx], off) != 0x0) {
-            val |= 0x1 << prevOff;
+        int n = last - i + 1;
+        numFree += n;
+        int freed = end - start + 1;
+        if (end == numElements - 1 && freed == numFree) {
+            /* All the free space is at the end. */
+            state = numElements - freed;
+        } else {
+            int maxFreed = ((state & HIGH_BIT_MASK) == 0)?
+                numElements - state : state & ~HIGH_BIT_MASK;
+            state = HIGH_BIT_MASK | Math.max(freed, maxFreed);
         }
-        vector[prevIdx] = (byte) val;
-        recomputeState();
         return n;
     }
 
     public final int allocatedSize(int index) {
-        int len = vector.length;
-        int off = 0;
-        int idx = index;
-        int val = vector[idx];
-
-        int n = 0;
-        boolean stop = false;
-        while (!stop && idx < len) {
-            switch (bits(val, off)) {
-                // Non-terminal allocated bit
-                case 3:
-                    n++;
-                    break;
-                // Terminal allocated bit
-                case 2:
-                    n++;
-                    return n;
-                default:
-                    break;
-            }
-            if (off == 3) {
-                off = 0;
-                idx++;
-                val = vector[idx];
-            } else {
-                off++;
-            }
+        int last = findTerminalAllocated(index);
+        if (last == -1) {
+            throw new IllegalArgumentException("Cannot compute allocated size of illegal index " + index + ".");
         }
-        throw new IllegalArgumentException("Cannot compute allocated size of illegal index " + index + ".");
+        return last - index + 1;
     }
 
+    /* First-fit search over the free regions, each of which ends with a terminal
+       free bit. */
     public final int findFree(int blocks) {
-        int len = vector.length;
-        int off = 0;
-        int idx = 0;
-        int val = vector[idx];
-
-        int n = 0;
-        int startIdx = -1;
-        while (idx < len) {
-            switch (bits(val, off)) {
-              // Non-terminal free bit
-              case 0:
-                  if (startIdx == -1) {
-                      startIdx = idx * 4 + off;
-                  }
-                  n++;
-                  break;
-              // Terminal free bit
-              case 1:
-                  if (startIdx == -1) {
-                      startIdx = idx * 4 + off;
-                  }
-                  n++;
-                  if (n >= blocks) return startIdx;
-                  n = 0;
-                  startIdx = -1;
-                  break;
-              default:
-                  break;
+        int i = 0;
+        for (;;) {
+            int start = next(FREE, i);
+            if (start == -1) return -1;
+            int end = next(TERMINAL_FREE, start);
+            if (end == -1) {
+                throw new IllegalStateException("AllocationVector is missing a terminal free bit!");
             }
-            if (off == 3) {
-                off = 0;
-                idx++;
-                val = vector[idx];
-            } else {
-                off++;
-            }
-        }
-        if (n > 0) {
-            throw new IllegalStateException("AllocationVector is missing a terminal free bit!");
+            if (end - start + 1 >= blocks) return start;
+            i = end + 1;
         }
-        return -1;
     }
 
     public final int findFreeAndAllocate(int blocks) {
@@ -206,7 +166,13 @@ public class AllocationVector {
             if ((state & ~HIGH_BIT_MASK) >= blocks) {
                 freeIdx = findFree(blocks);
                 if (freeIdx != -1) {
-                    allocate(freeIdx, blocks, true);
+                    allocateFound(freeIdx, blocks);
+                } else {
+                    /* The hint was stale, so tighten it. */
+                    recomputeState();
+                    if ((state & HIGH_BIT_MASK) == 0) {
+                        return allocate(blocks);
+                    }
                 }
             }
             return freeIdx;
@@ -215,55 +181,33 @@ public class AllocationVector {
 
     /* This function is responsible for making sure the state is kept up-to-date. */
     private final void recomputeState() {
-        int len = vector.length;
-        int numElements = len << 2;
-        int off = 0;
-        int idx = 0;
-        int val = vector[idx];
-
-        int allocated = 0;
+        int allocated = -numPadding;
         int freed = 0;
-        int freeIdx = -1;
         int maxFreed = 0;
-        int maxFreeIdx = -1;
-        while (idx < len) {
-            switch (bits(val, off)) {
-                // Non-terminal free bit
-                case 0:
-                    if (freeIdx == -1) {
-                        freeIdx = idx;
-                    }
-                    freed++;
-                    break;
-                // Terminal free bit
-                case 1:
-                    freed++;
-                    if (freeIdx == -1) {
-                        freeIdx = idx;
-                    }
-                    if (freed > maxFreed) {
-                        maxFreed = freed;
-                        maxFreeIdx = freeIdx;
-                    }
-                    freed = 0;
-                    freeIdx = -1;
-                    break;
-                default:
-                    allocated++;
-                    break;
-            }
-            if (off == 3) {
-                off = 0;
-                idx++;
-                if (idx < len) {
-                    val = vector[idx];
+        int maxFreeEnd = -1;
+        for (int w = 0; w < vector.length; w++) {
+            long word = vector[w];
+            long free = freeBits(word);
+            long terminals = free & word;
+            allocated += Long.bitCount(~free & LOW_BITS);
+            while (terminals != 0) {
+                int bit = Long.numberOfTrailingZeros(terminals);
+                /* The free elements up to and including the terminal one. */
+                long upTo = (bit == 62)? -1L : (1L << (bit + 2)) - 1;
+                freed += Long.bitCount(free & upTo);
+                if (freed > maxFreed) {
+                    maxFreed = freed;
+                    maxFreeEnd = (w << 5) + (bit >>> 1);
                 }
-            } else {
-                off++;
+                freed = 0;
+                free &= ~upTo;
+                terminals &= ~upTo;
             }
+            freed += Long.bitCount(free);
         }
+        numFree = numElements - allocated;
 
-        if ((maxFreeIdx == -1 || maxFreeIdx + maxFreed == numElements)
+        if ((maxFreeEnd == -1 || maxFreeEnd == numElements - 1)
             && maxFreed + allocated == numElements) {
             state = allocated;
         } else {
@@ -271,55 +215,119 @@ public class AllocationVector {
         }
     }
 
-    private static int bits(int val, int off) {
-        off <<= 1;
-        return (val & (0x3 << off)) >>> off;
+    /* Bit Manipulation */
+    private static final int FREE               = 0;
+    private static final int TERMINAL_FREE      = 1;
+    private static final int TERMINAL_ALLOCATED = 2;
+    /* Elements that a free region can't extend backwards past. */
+    private static final int FREE_BOUNDARY      = 3;
+
+    /* Sets the low bit of each element that is free. */
+    private static long freeBits(long word) {
+        return ~(word >>> 1) & LOW_BITS;
+    }
+
+    private static long select(int kind, long word) {
+        switch (kind) {
+            case FREE:
+                return freeBits(word);
+            case TERMINAL_FREE:
+                return freeBits(word) & word;
+            case TERMINAL_ALLOCATED:
+                return (word >>> 1) & ~word & LOW_BITS;
+            default:
+                return ~freeBits(word) & LOW_BITS | (freeBits(word) & word);
+        }
+    }
+
+    /* Returns the index of the first element at or after `i` of the given kind or
+       -1 if there isn't one. */
+    private final int next(int kind, int i) {
+        if (i >= numElements) return -1;
+        int w = i >>> 5;
+        long found = select(kind, vector[w]) & (-1L << ((i & 31) << 1));
+        while (found == 0) {
+            if (++w == vector.length) return -1;
+            found = select(kind, vector[w]);
+        }
+        int index = (w << 5) + (Long.numberOfTrailingZeros(found) >>> 1);
+        return (index < numElements)? index : -1;
+    }
+
+    /* Returns the index of the last element before `i` of the given kind or -1 if
+       there isn't one. */
+    private final int previous(int kind, int i) {
+        if (i <= 0) return -1;
+        i--;
+        int w = i >>> 5;
+        long found = select(kind, vector[w]) & (-1L >>> (62 - ((i & 31) << 1)));
+        while (found == 0) {
+            if (--w < 0) return -1;
+            found = select(kind, vector[w]);
+        }
+        return (w << 5) + ((63 - Long.numberOfLeadingZeros(found)) >>> 1);
+    }
+
+    private final int findTerminalAllocated(int i) {
+        return next(TERMINAL_ALLOCATED, i);
+    }
+
+    private final int bits(int i) {
+        return (int) (vector[i >>> 5] >>> ((i & 31) << 1)) & 0x3;
+    }
+
+    private final void setBits(int i, int val) {
+        int shift = (i & 31) << 1;
+        vector[i >>> 5] = (vector[i >>> 5] & ~(0x3L << shift)) | ((long) val << shift);
+    }
+
+    /* The mask of the elements from `from` to `to` (inclusive) of a word. */
+    private static long rangeMask(int from, int to) {
+        return (-1L << (from << 1)) & (-1L >>> (62 - (to << 1)));
+    }
+
+    /* Marks the elements from `from` to `to` (inclusive) as allocated. */
+    private final void orRange(int from, int to) {
+        int fromWord = from >>> 5;
+        int toWord   = to >>> 5;
+        for (int w = fromWord; w <= toWord; w++) {
+            int lo = (w == fromWord)? from & 31 : 0;
+            int hi = (w == toWord)? to & 31 : 31;
+            vector[w] |= rangeMask(lo, hi);
+        }
+    }
+
+    /* Marks the elements from `from` to `to` (inclusive) as non-terminal free. */
+    private final void clearRange(int from, int to) {
+        int fromWord = from >>> 5;
+        int toWord   = to >>> 5;
+        for (int w = fromWord; w <= toWord; w++) {
+            int lo = (w == fromWord)? from & 31 : 0;
+            int hi = (w == toWord)? to & 31 : 31;
+            vector[w] &= ~rangeMask(lo, hi);
+        }
     }
 
     /* Monitoring */
     public final List<Span> getSpans() {
         LinkedList<Span> spans = new LinkedList<Span>();
-        int len = vector.length;
-        int numElements = len << 2;
-        int off = 0;
-        int idx = 0;
-        int val = vector[idx];
-
         int spanSize = 0;
-        while (idx < len) {
-            switch (bits(val, off)) {
-                // Non-terminal free bit
-                case 0:
-                    spanSize++;
-                    break;
+        for (int i = 0; i < numElements; i++) {
+            spanSize++;
+            switch (bits(i)) {
                 // Terminal free bit
                 case 1:
-                    spanSize++;
                     spans.add(new Span(false, spanSize));
                     spanSize = 0;
                     break;
-                // Non-terminal allocated bit
-                case 3:
-                    spanSize++;
-                    break;
                 // Terminal allocated bit
                 case 2:
-                    spanSize++;
                     spans.add(new Span(true, spanSize));
                     spanSize = 0;
                     break;
                 default:
                     break;
             }
-            if (off == 3) {
-                off = 0;
-                idx++;
-                if (idx < len) {
-                    val = vector[idx];
-                }
-            } else {
-                off++;
-            }
         }
         return spans;
     }
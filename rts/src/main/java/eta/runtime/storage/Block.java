@@ -1,19 +1,36 @@
 package eta.runtime.storage;
 
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+import eta.runtime.Runtime;
 import eta.runtime.stg.Capability;
+import static eta.runtime.util.UnsafeUtil.UNSAFE;
 
 public class Block {
     private long startAddress;
     private ByteBuffer buffer;
     private AllocationVector av;
+    /* Set instead of `av` if the block is used for a single size class. */
+    private Slab slab;
     private Capability owner;
+    /* The native address of the start of the buffer if it's direct, writable and
+       Unsafe is available, 0 otherwise. */
+    private long nativeAddress;
+    /* Whether the typed accessors go through `nativeAddress`. */
+    private boolean unsafeAccess;
+    /* Whether the buffer maps a file and is allocated as a whole. */
+    private boolean mapped;
 
     /* This link is used to store it in the collection of free blocks,
        and to store the link to the previous buffer. */
     public Block link;
+    /* The reverse of `link` so that a block can be unlinked in constant time. */
+    private Block prev;
 
     public Block() {}
 
@@ -23,10 +40,32 @@ public class Block {
         else return startAddress + getMiniBlockSize() * index;
     }
 
+    public final long allocateSlot() {
+        int index = slab.allocate();
+        if (index == -1) return 0;
+        else return startAddress + slab.getSlotSize() * index;
+    }
+
+    public final Slab getSlab() {
+        return slab;
+    }
+
     public final boolean isActive() {
         return buffer != null;
     }
 
+    public final boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    public final boolean isMapped() {
+        return mapped;
+    }
+
+    public final Capability getOwner() {
+        return owner;
+    }
+
     private final int getMiniBlockSize() {
         return buffer.remaining() / av.size();
     }
@@ -41,17 +80,85 @@ public class Block {
 
     public final void setLink(Block link) {
         this.link = link;
+        this.prev = null;
+        if (link != null) {
+            link.prev = this;
+        }
+    }
+
+    /* Removes this block from the middle of the block stack it's in. Returns false
+       if it's at the top of the stack, since only the owner of the stack can update
+       it. */
+    public final boolean unlink() {
+        if (prev == null) return false;
+        prev.link = link;
+        if (link != null) {
+            link.prev = prev;
+        }
+        link = null;
+        prev = null;
+        return true;
+    }
+
+    /* Returns the buffer so that it can be reused and makes the block inactive. */
+    public final ByteBuffer releaseBuffer() {
+        final ByteBuffer buffer = this.buffer;
+        this.buffer        = null;
+        this.av            = null;
+        this.slab          = null;
+        this.nativeAddress = 0;
+        this.unsafeAccess  = false;
+        this.mapped        = false;
+        return buffer;
+    }
+
+    /* Removes this block from the top of the block stack it's in and returns the
+       rest of the stack. */
+    public final Block pop() {
+        final Block rest = link;
+        link = null;
+        if (rest != null) {
+            rest.prev = null;
+        }
+        return rest;
     }
 
     public final Block getLink() {
         return link;
     }
 
-    public final void init(long startAddress, int miniBlockSize, ByteBuffer buffer) {
+    /* Assigns the address range of a block that's yet to be initialized. */
+    public final void setAddress(long startAddress) {
         this.startAddress = startAddress;
-        this.av           = new AllocationVector(buffer.remaining() / miniBlockSize);
-        this.buffer       = buffer;
-        this.owner        = Capability.getLocal();
+    }
+
+    public final void init(long startAddress, int miniBlockSize, ByteBuffer buffer) {
+        this.av     = new AllocationVector(buffer.remaining() / miniBlockSize);
+        this.mapped = false;
+        setBuffer(startAddress, buffer);
+    }
+
+    /* Initializes the block with the buffer of a mapped file, which is a single
+       allocation that spans the whole block. */
+    public final void initMapped(long startAddress, ByteBuffer buffer) {
+        this.av     = null;
+        this.mapped = true;
+        setBuffer(startAddress, buffer);
+    }
+
+    private final void setBuffer(long startAddress, ByteBuffer buffer) {
+        this.startAddress  = startAddress;
+        this.slab          = null;
+        this.buffer        = buffer;
+        this.owner         = Capability.getLocal();
+        this.nativeAddress = getNativeAddress(buffer);
+        this.unsafeAccess  = nativeAddress != 0 && Runtime.useUnsafeMemoryAccess();
+    }
+
+    /* Turns an initialized block into a slab of `slotSize` slots. */
+    public final void initSlab(int slotSize) {
+        this.av   = null;
+        this.slab = new Slab(slotSize, buffer.remaining() / slotSize);
     }
 
     private final long findFreeBlocks(int miniblocks, boolean direct) {
@@ -70,17 +177,19 @@ public class Block {
         return 0;
     }
 
-    public final void sendFreeMessage(long address) {
-        if (owner == Capability.getLocal()) {
-            free(address);
-        } else {
-            owner.freeMessages.write(address);
+    /* Returns the number of bytes freed. */
+    public final int free(long address) {
+        if (slab != null) {
+            final int slotSize = slab.getSlotSize();
+            return slab.free((int)(address - startAddress) / slotSize)? slotSize : 0;
         }
+        final int miniBlockSize = getMiniBlockSize();
+        return av.free((int)(address - startAddress)
+                       >>> Integer.numberOfTrailingZeros(miniBlockSize)) * miniBlockSize;
     }
 
-    public final void free(long address) {
-        av.free((int)(address - startAddress)
-            >>> Integer.numberOfTrailingZeros(getMiniBlockSize()));
+    public final boolean isFree() {
+        return (slab != null)? slab.isEmpty() : av.isEmpty();
     }
 
     public final ByteBuffer getBoundedBuffer(long address) {
@@ -88,83 +197,309 @@ public class Block {
     }
 
     public final int allocatedSize(long address) {
+        if (mapped) return getSize();
+        if (slab != null) return slab.getSlotSize();
         int miniBlockSize = getMiniBlockSize();
         int idx = (int)(address - startAddress) / miniBlockSize;
         return av.allocatedSize(idx) * miniBlockSize;
     }
 
-    /* Reading from/writing to memory. */
+    /* Reading from/writing to memory.
+       Direct blocks with a native address bypass the ByteBuffer and its bounds
+       checks. The buffers are big-endian, so values are byte-swapped on platforms
+       that aren't. */
     public final byte get(long address) {
+        if (unsafeAccess) {
+            return UNSAFE.getByte(nativeOffset(address, 1));
+        }
         return buffer.get((int)(address - startAddress));
     }
 
     public final short getShort(long address) {
+        if (unsafeAccess) {
+            short val = UNSAFE.getShort(nativeOffset(address, 2));
+            return swapBytes? Short.reverseBytes(val) : val;
+        }
         return buffer.getShort((int)(address - startAddress));
     }
 
     public final char getChar(long address) {
+        if (unsafeAccess) {
+            char val = UNSAFE.getChar(nativeOffset(address, 2));
+            return swapBytes? Character.reverseBytes(val) : val;
+        }
         return buffer.getChar((int)(address - startAddress));
     }
 
     public final int getInt(long address) {
+        if (unsafeAccess) {
+            int val = UNSAFE.getInt(nativeOffset(address, 4));
+            return swapBytes? Integer.reverseBytes(val) : val;
+        }
         return buffer.getInt((int)(address - startAddress));
     }
 
     public final long getLong(long address) {
+        if (unsafeAccess) {
+            long val = UNSAFE.getLong(nativeOffset(address, 8));
+            return swapBytes? Long.reverseBytes(val) : val;
+        }
         return buffer.getLong((int)(address - startAddress));
     }
 
     public final float getFloat(long address) {
+        if (unsafeAccess) {
+            return Float.intBitsToFloat(getInt(address));
+        }
         return buffer.getFloat((int)(address - startAddress));
     }
 
     public final double getDouble(long address) {
+        if (unsafeAccess) {
+            return Double.longBitsToDouble(getLong(address));
+        }
         return buffer.getDouble((int)(address - startAddress));
     }
 
     public final void put(long address, byte val) {
+        if (unsafeAccess) {
+            UNSAFE.putByte(nativeOffset(address, 1), val);
+            return;
+        }
         buffer.put((int)(address - startAddress), val);
     }
 
     public final void putShort(long address, short val) {
+        if (unsafeAccess) {
+            UNSAFE.putShort(nativeOffset(address, 2), swapBytes? Short.reverseBytes(val) : val);
+            return;
+        }
         buffer.putShort((int)(address - startAddress), val);
     }
 
     public final void putChar(long address, char val) {
+        if (unsafeAccess) {
+            UNSAFE.putChar(nativeOffset(address, 2), swapBytes? Character.reverseBytes(val) : val);
+            return;
+        }
         buffer.putChar((int)(address - startAddress), val);
     }
 
     public final void putInt(long address, int val) {
+        if (unsafeAccess) {
+            UNSAFE.putInt(nativeOffset(address, 4), swapBytes? Integer.reverseBytes(val) : val);
+            return;
+        }
         buffer.putInt((int)(address - startAddress), val);
     }
 
     public final void putLong(long address, long val) {
+        if (unsafeAccess) {
+            UNSAFE.putLong(nativeOffset(address, 8), swapBytes? Long.reverseBytes(val) : val);
+            return;
+        }
         buffer.putLong((int)(address - startAddress), val);
     }
 
     public final void putFloat(long address, float val) {
+        if (unsafeAccess) {
+            putInt(address, Float.floatToRawIntBits(val));
+            return;
+        }
         buffer.putFloat((int)(address - startAddress), val);
     }
 
     public final void putDouble(long address, double val) {
+        if (unsafeAccess) {
+            putLong(address, Double.doubleToRawLongBits(val));
+            return;
+        }
         buffer.putDouble((int)(address - startAddress), val);
     }
 
-    /* Caching */
-    public final void fillCache(long address, CachedBlock cb) {
+    /* Bulk operations
+       These check the bounds once for the whole range and then use Unsafe for
+       direct blocks, or the backing array for heap blocks. */
+    public final void fill(long address, byte val, int size) {
+        final int offset = checkRange(address, size);
+        if (nativeAddress != 0) {
+            UNSAFE.setMemory(nativeAddress + offset, size, val);
+        } else if (buffer.hasArray()) {
+            final int start = buffer.arrayOffset() + offset;
+            Arrays.fill(buffer.array(), start, start + size, val);
+        } else {
+            final long pattern = (val & 0xFFL) * 0x0101010101010101L;
+            final int end = offset + size;
+            int i = offset;
+            for (; i <= end - 8; i += 8) {
+                buffer.putLong(i, pattern);
+            }
+            for (; i < end; i++) {
+                buffer.put(i, val);
+            }
+        }
+    }
+
+    /* Copies `size` bytes to `dest`, which may be this block. Overlapping ranges
+       are copied as if through an intermediate buffer, like memmove(). */
+    public final void copy(long srcAddress, Block dest, long destAddress, int size) {
+        final int srcOffset  = checkRange(srcAddress, size);
+        final int destOffset = dest.checkRange(destAddress, size);
+        if (nativeAddress != 0 && dest.nativeAddress != 0) {
+            /* Unsafe.copyMemory() handles overlapping ranges. */
+            UNSAFE.copyMemory(nativeAddress + srcOffset, dest.nativeAddress + destOffset, size);
+        } else if (buffer.hasArray() && dest.buffer.hasArray()) {
+            /* So does System.arraycopy(). */
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + srcOffset,
+                             dest.buffer.array(), dest.buffer.arrayOffset() + destOffset,
+                             size);
+        } else {
+            ByteBuffer src = buffer.duplicate();
+            src.limit(srcOffset + size).position(srcOffset);
+            if (dest == this && srcOffset < destOffset + size && destOffset < srcOffset + size) {
+                /* Only reached for direct blocks without Unsafe. */
+                byte[] tmp = new byte[size];
+                src.get(tmp);
+                src = ByteBuffer.wrap(tmp);
+            }
+            ByteBuffer dst = dest.buffer.duplicate();
+            dst.position(destOffset);
+            dst.put(src);
+        }
+    }
+
+    /* Compares `size` bytes as unsigned bytes, eight at a time. Returns the
+       difference of the first pair that mismatches or 0. */
+    public final int compare(long address, Block other, long otherAddress, int size) {
+        final int offset      = checkRange(address, size);
+        final int otherOffset = other.checkRange(otherAddress, size);
+        return compare(buffer, offset, other.buffer, otherOffset, size);
+    }
+
+    /* Compares absolute ranges of two buffers. Big-endian longs compare in the
+       same order as their bytes do. */
+    public static int compare(ByteBuffer b1, int i1, ByteBuffer b2, int i2, int size) {
+        final boolean swap1 = b1.order() != ByteOrder.BIG_ENDIAN;
+        final boolean swap2 = b2.order() != ByteOrder.BIG_ENDIAN;
+        int i = 0;
+        for (; i <= size - 8; i += 8) {
+            long x = b1.getLong(i1 + i);
+            long y = b2.getLong(i2 + i);
+            if (swap1) x = Long.reverseBytes(x);
+            if (swap2) y = Long.reverseBytes(y);
+            if (x != y) {
+                i += Long.numberOfLeadingZeros(x ^ y) >>> 3;
+                return (b1.get(i1 + i) & 0xFF) - (b2.get(i2 + i) & 0xFF);
+            }
+        }
+        for (; i < size; i++) {
+            int x = b1.get(i1 + i) & 0xFF;
+            int y = b2.get(i2 + i) & 0xFF;
+            if (x != y) return x - y;
+        }
+        return 0;
+    }
+
+    /* Returns the index of the first occurrence of `c` in the `size` bytes from
+       `address` or -1 if there isn't one. */
+    public final int indexOf(long address, byte c, int size) {
+        return indexOf(buffer, checkRange(address, size), c, size);
+    }
+
+    private static final long ONES  = 0x0101010101010101L;
+    private static final long SEVEN = 0x7F7F7F7F7F7F7F7FL;
+
+    /* Searches an absolute range of a buffer eight bytes at a time (SWAR). Each
+       long is XOR'd with `c` in every byte, so matching bytes become zero, and the
+       zero bytes are found exactly, without carries across bytes. */
+    public static int indexOf(ByteBuffer b, int from, byte c, int size) {
+        final boolean bigEndian = b.order() == ByteOrder.BIG_ENDIAN;
+        final long pattern = (c & 0xFFL) * ONES;
+        int i = 0;
+        for (; i <= size - 8; i += 8) {
+            long x = b.getLong(from + i) ^ pattern;
+            long zeros = ~(((x & SEVEN) + SEVEN) | x | SEVEN);
+            if (zeros != 0) {
+                return i + ((bigEndian? Long.numberOfLeadingZeros(zeros)
+                                      : Long.numberOfTrailingZeros(zeros)) >>> 3);
+            }
+        }
+        for (; i < size; i++) {
+            if (b.get(from + i) == c) return i;
+        }
+        return -1;
+    }
+
+    /* Returns the offset of `address` in the buffer. */
+    private final int checkRange(long address, int size) {
+        final long offset = address - startAddress;
+        if (size < 0 || offset < 0 || offset > buffer.limit() - size) {
+            throw new IndexOutOfBoundsException
+              ("Attempted to access " + size + " bytes at memory address " + address +
+               " which is outside of the block at " + startAddress + ".");
+        }
+        return (int) offset;
+    }
+
+    /* Translates an address to a native one, checking that `width` bytes fit in
+       the block if the eta.debug.memoryBounds flag is set. */
+    private final long nativeOffset(long address, int width) {
+        final long offset = address - startAddress;
+        if (Runtime.debugMemoryBounds()
+            && (offset < 0 || offset > buffer.limit() - width)) {
+            throw new IndexOutOfBoundsException
+              ("Attempted to access " + width + " bytes at memory address " + address +
+               " which is outside of the block at " + startAddress + ".");
+        }
+        return nativeAddress + offset;
+    }
+
+    /* Native Addresses */
+    private static final boolean swapBytes
+        = ByteOrder.nativeOrder() != ByteOrder.BIG_ENDIAN;
+
+    private static final long bufferAddressOffset;
+
+    static {
+        long offset = -1;
+        if (UNSAFE != null) {
+            try {
+                offset = UNSAFE.objectFieldOffset
+                    (Buffer.class.getDeclaredField("address"));
+            } catch (Exception e) {
+                offset = -1;
+            }
+        }
+        bufferAddressOffset = offset;
+    }
+
+    /* Returns 0 if the native address of the buffer is not available. Read-only
+       buffers don't expose it since writing through it would crash the JVM
+       instead of throwing. */
+    private static long getNativeAddress(ByteBuffer buffer) {
+        if (bufferAddressOffset < 0 || !buffer.isDirect() || buffer.isReadOnly()) return 0;
+        return UNSAFE.getLong(buffer, bufferAddressOffset);
+    }
+
+    public final void checkActive(long address) {
         if (buffer == null) {
             throw new IllegalStateException
               ("Attempted to access memory address " + address +
                " which has not be allocated yet!");
         }
-        cb.set(this, startAddress, startAddress + buffer.remaining());
     }
 
     /* Monitoring */
     public final BlockStats getStatistics() {
-        int miniBlockSize = getMiniBlockSize();
+        if (mapped) {
+            /* The contents of a mapped file are left out. */
+            List<Span> spans = new ArrayList<Span>(1);
+            spans.add(new Span(true, 1));
+            return new BlockStats(startAddress, owner.id, true, spans);
+        }
+        int miniBlockSize = (slab != null)? slab.getSlotSize() : getMiniBlockSize();
         ByteBuffer buffer = this.buffer.duplicate();
-        List<Span> spans  = av.getSpans();
+        List<Span> spans  = (slab != null)? slab.getSpans() : av.getSpans();
         for (Span span: spans) {
             int numBytes = span.size * miniBlockSize;
             if (span.allocated) {
@@ -3,6 +3,8 @@ package eta.runtime.storage;
 public class DefaultLocalHeap implements LocalHeap {
     private static LocalHeap INSTANCE = new DefaultLocalHeap();
 
+    private final MemoryCounters memoryCounters = new MemoryCounters();
+
     public static LocalHeap getInstance() {
         return INSTANCE;
     }
@@ -14,4 +16,17 @@ public class DefaultLocalHeap implements LocalHeap {
 
     @Override
     public void setActiveBlock(Block block, boolean direct, boolean supr) {}
+
+    @Override
+    public long allocateSlot(int _sizeClass, boolean _direct) {
+        return 0;
+    }
+
+    @Override
+    public void setActiveSlab(Block slab, int sizeClass, boolean direct) {}
+
+    @Override
+    public MemoryCounters getMemoryCounters() {
+        return memoryCounters;
+    }
 }
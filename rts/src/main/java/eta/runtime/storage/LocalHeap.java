@@ -3,4 +3,7 @@ package eta.runtime.storage;
 public interface LocalHeap {
     long allocateLocal(int miniblocks, boolean direct, boolean supr);
     void setActiveBlock(Block block, boolean direct, boolean supr);
+    long allocateSlot(int sizeClass, boolean direct);
+    void setActiveSlab(Block slab, int sizeClass, boolean direct);
+    MemoryCounters getMemoryCounters();
 }
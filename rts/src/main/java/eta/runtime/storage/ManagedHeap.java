@@ -1,9 +1,17 @@
 package eta.runtime.storage;
 
-import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Queue;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import eta.runtime.stg.Capability;
+import static eta.runtime.util.UnsafeUtil.UNSAFE;
 
 public class ManagedHeap {
     /* All of the sizes *must* be a power of 2. */
@@ -19,12 +27,52 @@ public class ManagedHeap {
     private final int miniBlockMask;
     private final int miniBlockBits;
 
-    /* Nursery storage */
-    private final CopyOnWriteArrayList<Nursery> nurseries
-        = new CopyOnWriteArrayList<Nursery>();
-    private Nursery activeNursery;
+    /* Nursery storage
+       The nurseries form a chain through their `next` links starting from
+       `firstNursery`.
+
+       `nurseryTable` is the root of a two-level radix table over the address
+       space: it's indexed by the nursery bits of an address and each nursery by
+       the block bits. It's only a cache of the chain so that a lookup is two
+       array loads. A slot that's missing, either because the nursery is being
+       published or because its write raced with a growth of the table, is filled
+       in again from the chain. */
+    private final Nursery firstNursery;
+    private volatile Nursery activeNursery;
+    private volatile Nursery[] nurseryTable = new Nursery[INITIAL_NURSERY_TABLE_SIZE];
+    private static final int INITIAL_NURSERY_TABLE_SIZE = 16;
+    private static final AtomicReferenceFieldUpdater<ManagedHeap, Nursery[]> nurseryTableUpdater
+        = AtomicReferenceFieldUpdater.newUpdater(ManagedHeap.class, Nursery[].class, "nurseryTable");
+
+    /* Free Block Pool
+       Blocks that become completely free are pooled by their size (in blocks)
+       and kind (direct vs. heap) and handed out again by allocateBlock. Once the
+       pool holds more than `maxPooledBytes`, the buffers of further free blocks
+       are released and only their address ranges are kept for reuse. */
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final ConcurrentHashMap<Integer, Queue<Block>> freeDirectBlocks
+        = new ConcurrentHashMap<Integer, Queue<Block>>();
+    private final ConcurrentHashMap<Integer, Queue<Block>> freeHeapBlocks
+        = new ConcurrentHashMap<Integer, Queue<Block>>();
+    private final ConcurrentHashMap<Integer, Queue<Block>> emptyBlocks
+        = new ConcurrentHashMap<Integer, Queue<Block>>();
+
+    /* If set, allocations of up to Slab.MAX_SIZE bytes are served from slabs
+       of their size class instead of being rounded up to miniblocks. */
+    private final boolean useSlabs;
 
     public ManagedHeap(int nurserySize, int blockSize, int miniBlockSize) {
+        this(nurserySize, blockSize, miniBlockSize, Long.MAX_VALUE);
+    }
+
+    public ManagedHeap(int nurserySize, int blockSize, int miniBlockSize,
+                       long maxPooledBytes) {
+        this(nurserySize, blockSize, miniBlockSize, maxPooledBytes, false);
+    }
+
+    public ManagedHeap(int nurserySize, int blockSize, int miniBlockSize,
+                       long maxPooledBytes, boolean useSlabs) {
         this.nurserySize   = nurserySize;
         this.blockSize     = blockSize;
         this.miniBlockSize = miniBlockSize;
@@ -35,11 +83,17 @@ public class ManagedHeap {
         this.blockBits     = Integer.numberOfTrailingZeros(blockSize);
         this.miniBlockMask = miniBlockSize - 1;
         this.miniBlockBits = Integer.numberOfTrailingZeros(miniBlockSize);
+        this.maxPooledBytes = maxPooledBytes;
+        this.useSlabs       = useSlabs && blockSize >= Slab.MAX_SIZE;
 
-        setActiveNursery(allocateNursery(blockSize));
+        this.firstNursery = allocateNursery(blockSize);
+        setActiveNursery(firstNursery);
     }
 
     public long allocateBuffer(int n, boolean direct, LocalHeap localHeap) {
+        if (useSlabs && n <= Slab.MAX_SIZE) {
+            return allocateSlot(n, direct, localHeap);
+        }
         int miniblocks = (n + miniBlockMask) >>> miniBlockBits;
         int blocks     = Math.max(1, (n + blockMask) >>> blockBits);
         boolean supr   = blocks > 1;
@@ -52,15 +106,86 @@ public class ManagedHeap {
             address = block.getAddress();
             localHeap.setActiveBlock(block, direct, supr);
         }
+        localHeap.getMemoryCounters().allocated(miniblocks << miniBlockBits, direct);
+        return address;
+    }
+
+    private long allocateSlot(int n, boolean direct, LocalHeap localHeap) {
+        int sizeClass = Slab.sizeClass(n);
+        /* First, try allocating from the thread-local slabs. */
+        long address = localHeap.allocateSlot(sizeClass, direct);
+        if (address == 0) {
+            /* Second, start a new slab. */
+            Block slab = allocateBlock(1, direct);
+            slab.initSlab(Slab.SIZE_CLASSES[sizeClass]);
+            slabs.incrementAndGet();
+            address = slab.allocateSlot();
+            localHeap.setActiveSlab(slab, sizeClass, direct);
+        }
+        localHeap.getMemoryCounters().allocated(Slab.SIZE_CLASSES[sizeClass], direct);
         return address;
     }
 
     public Block allocateBlock(int blocks, boolean direct) {
-        /* TODO: Implement the free block pool */
-        return activeNursery
-            .allocateBlocks(blocks,
-                            allocateAnonymousBuffer(blocks * blockSize, direct),
-                            this);
+        /* First, try reusing a free block along with its buffer. */
+        Block block = poll(direct? freeDirectBlocks : freeHeapBlocks, blocks);
+        if (block != null) {
+            ByteBuffer buffer = block.releaseBuffer();
+            pooledBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+            block.init(block.getAddress(), miniBlockSize, buffer);
+            countBlock(block, 1);
+            return block;
+        }
+        ByteBuffer buffer = allocateAnonymousBuffer(blocks * blockSize, direct);
+        block = reserveBlocks(blocks);
+        block.init(block.getAddress(), miniBlockSize, buffer);
+        countBlock(block, 1);
+        return block;
+    }
+
+    /* Returns a block with the address range of `blocks` blocks that's yet to be
+       initialized. */
+    private Block reserveBlocks(int blocks) {
+        /* First, try reusing the address range of a block that released its
+           buffer. */
+        Block block = poll(emptyBlocks, blocks);
+        if (block != null) return block;
+        /* Then, carve out new blocks from the nursery. */
+        if (blocks > nurserySize) return reserveLargeBlocks(blocks);
+        return activeNursery.allocateBlocks(blocks, this);
+    }
+
+    /* Blocks that don't fit in a nursery get a run of new nurseries of their own
+       which is appended to the end of the chain in one step. */
+    private Block reserveLargeBlocks(int blocks) {
+        final long nurseryBytes = (long) nurserySize * blockSize;
+        for (;;) {
+            Nursery tail = activeNursery;
+            Nursery next;
+            while ((next = tail.getNext()) != null) tail = next;
+            long address = tail.getAddress() + nurseryBytes;
+            Block block = new Block();
+            block.setAddress(address);
+            Nursery first = null;
+            Nursery last  = null;
+            for (int remaining = blocks; remaining > 0; remaining -= nurserySize) {
+                Nursery nursery = allocateNursery(address);
+                nursery.reserveBlocks(Math.min(remaining, nurserySize), block);
+                if (last == null) first = nursery;
+                else last.setNext(null, nursery);
+                last = nursery;
+                address += nurseryBytes;
+            }
+            if (tail.setNext(null, first)) {
+                for (Nursery nursery = first; nursery != last; nursery = nursery.getNext()) {
+                    publishNursery(getNurseryIndex(nursery.getAddress()), nursery);
+                }
+                /* The last nursery may have blocks to spare. */
+                setActiveNursery(last);
+                return block;
+            }
+        }
     }
 
     public Nursery allocateNursery(long startAddress) {
@@ -69,7 +194,7 @@ public class ManagedHeap {
 
     public void setActiveNursery(Nursery nursery) {
         this.activeNursery = nursery;
-        this.nurseries.add(nursery);
+        publishNursery(getNurseryIndex(nursery.getAddress()), nursery);
     }
 
     public Block getBlock(long address) {
@@ -80,23 +205,188 @@ public class ManagedHeap {
         long normalizedAddress = address - blockSize;
         int nurseryIndex = (int) (normalizedAddress >>> (nurseryBits + blockBits));
         int blockIndex   = (int)((normalizedAddress >>> blockBits) & nurseryMask);
-        int size = nurseries.size();
-        Nursery nursery = null;
-        if (nurseryIndex == size)
-            nursery = activeNursery.getNext();
-        if (nursery == null && nurseryIndex >= size) {
+        Nursery[] table  = nurseryTable;
+        Nursery nursery;
+        if (nurseryIndex >= table.length || (nursery = table[nurseryIndex]) == null) {
+            nursery = findNursery(address, nurseryIndex);
+        }
+        return nursery.getBlock(blockIndex);
+    }
+
+    private int getNurseryIndex(long startAddress) {
+        return (int) ((startAddress - blockSize) >>> (nurseryBits + blockBits));
+    }
+
+    /* Slow path of getBlock(): walks the chain of nurseries. */
+    private Nursery findNursery(long address, int nurseryIndex) {
+        Nursery nursery = firstNursery;
+        for (int i = 0; i < nurseryIndex && nursery != null; i++) {
+            nursery = nursery.getNext();
+        }
+        if (nursery == null) {
             throwIllegalAddressException(address,
                                          "Exceeded higher bound of the address space.");
         }
-        return nurseries.get(nurseryIndex).getBlock(blockIndex);
+        publishNursery(nurseryIndex, nursery);
+        return nursery;
+    }
+
+    private void publishNursery(int nurseryIndex, Nursery nursery) {
+        for (;;) {
+            Nursery[] table = nurseryTable;
+            if (nurseryIndex < table.length) {
+                table[nurseryIndex] = nursery;
+                return;
+            }
+            int newSize = table.length;
+            while (newSize <= nurseryIndex) newSize <<= 1;
+            Nursery[] newTable = new Nursery[newSize];
+            System.arraycopy(table, 0, newTable, 0, table.length);
+            nurseryTableUpdater.compareAndSet(this, table, newTable);
+        }
     }
 
     public void attemptFree(long address) {
-        getBlock(address).sendFreeMessage(address);
+        Block block = getBlock(address);
+        Capability owner = block.getOwner();
+        if (owner == Capability.getLocal()) {
+            free(block, address);
+        } else {
+            owner.freeMessages.write(address);
+        }
+    }
+
+    /* Hands the address over to the owner of its block. Unlike attemptFree(),
+       this is safe to call from threads that aren't Capabilities. */
+    public void sendFreeMessage(long address) {
+        getBlock(address).getOwner().freeMessages.write(address);
     }
 
+    /* Must be called by the owner of the block. */
     public void free(long address) {
-        getBlock(address).free(address);
+        free(getBlock(address), address);
+    }
+
+    private void free(Block block, long address) {
+        Slab slab = block.getSlab();
+        if (block.isMapped()) {
+            if (address == block.getAddress()) unmap(block);
+            return;
+        }
+        boolean wasFull = slab != null && slab.isFull();
+        int freed = block.free(address);
+        if (freed == 0) return;
+        block.getOwner().getMemoryCounters().freed(freed, block.isDirect());
+        if (wasFull) {
+            /* Full slabs aren't in any slab stack, so it's handed back to its owner
+               now that it has a free slot. */
+            block.getOwner().setActiveSlab(block, Slab.sizeClass(slab.getSlotSize()),
+                                           block.isDirect());
+        } else if (block.isFree() && block.unlink()) {
+            recycleBlock(block);
+        }
+    }
+
+    /* The block must be completely free and no longer reachable from the block
+       stack of its owner. */
+    private void recycleBlock(Block block) {
+        int size   = block.getSize();
+        int blocks = size >>> blockBits;
+        countBlock(block, -1);
+        if (block.getSlab() != null) slabs.decrementAndGet();
+        if (pooledBytes.addAndGet(size) <= maxPooledBytes) {
+            offer(block.isDirect()? freeDirectBlocks : freeHeapBlocks, blocks, block);
+        } else {
+            pooledBytes.addAndGet(-size);
+            /* Let the GC reclaim the buffer. */
+            block.releaseBuffer();
+            offer(emptyBlocks, blocks, block);
+        }
+    }
+
+    private static Block poll(ConcurrentHashMap<Integer, Queue<Block>> pool, int blocks) {
+        Queue<Block> queue = pool.get(blocks);
+        return (queue == null)? null : queue.poll();
+    }
+
+    private static void offer(ConcurrentHashMap<Integer, Queue<Block>> pool, int blocks,
+                              Block block) {
+        Queue<Block> queue = pool.get(blocks);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<Block>();
+            Queue<Block> oldQueue = pool.putIfAbsent(blocks, queue);
+            if (oldQueue != null) queue = oldQueue;
+        }
+        queue.offer(block);
+    }
+
+    /* Memory-Mapped Files
+       A mapped file gets a block of its own so that it can be accessed through
+       addresses like any other memory. The file is unmapped when the address is
+       freed and only the address range of the block is kept for reuse. */
+    public long map(MappedByteBuffer buffer) {
+        int blocks  = Math.max(1, (buffer.capacity() + blockMask) >>> blockBits);
+        Block block = reserveBlocks(blocks);
+        block.initMapped(block.getAddress(), buffer);
+        mappedBlocks.incrementAndGet();
+        mappedBytes.addAndGet(buffer.capacity());
+        return block.getAddress();
+    }
+
+    private void unmap(Block block) {
+        int size   = block.getSize();
+        int blocks = Math.max(1, (size + blockMask) >>> blockBits);
+        mappedBlocks.decrementAndGet();
+        mappedBytes.addAndGet(-size);
+        ByteBuffer buffer = block.releaseBuffer();
+        offer(emptyBlocks, blocks, block);
+        unmapBuffer(buffer);
+    }
+
+    /* The JDK only unmaps a MappedByteBuffer once it's collected, so it's done
+       eagerly through its cleaner if the JDK allows it: Unsafe.invokeCleaner()
+       on Java 9+ and DirectBuffer.cleaner() before that. */
+    private static final Method invokeCleaner;
+    private static final Method getCleaner;
+    private static final Method clean;
+
+    static {
+        Method invoke = null;
+        Method get    = null;
+        Method cl     = null;
+        if (UNSAFE != null) {
+            try {
+                invoke = UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (Exception e) {
+                try {
+                    get = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                    cl  = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                } catch (Exception e2) {
+                    get = null;
+                    cl  = null;
+                }
+            }
+        }
+        invokeCleaner = invoke;
+        getCleaner    = get;
+        clean         = cl;
+    }
+
+    private static void unmapBuffer(ByteBuffer buffer) {
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(UNSAFE, buffer);
+            } else if (getCleaner != null) {
+                Object cleaner = getCleaner.invoke(buffer);
+                if (cleaner != null) clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            /* Leave it to the GC. */
+        }
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
     }
 
     private static void throwIllegalAddressException(long address, String message) {
@@ -111,12 +401,63 @@ public class ManagedHeap {
                 ByteBuffer.allocate(n));
     }
 
-    /* Monitoring */
+    /* Monitoring
+       Counters of the blocks in use by kind, kept up to date as blocks are handed
+       out and recycled so that they're cheap to read. Pooled blocks aren't
+       counted as in use. */
+    private final AtomicLong directBlocks     = new AtomicLong();
+    private final AtomicLong directBlockBytes = new AtomicLong();
+    private final AtomicLong heapBlocks       = new AtomicLong();
+    private final AtomicLong heapBlockBytes   = new AtomicLong();
+    private final AtomicLong slabs            = new AtomicLong();
+    private final AtomicLong mappedBlocks     = new AtomicLong();
+    private final AtomicLong mappedBytes      = new AtomicLong();
+
+    private void countBlock(Block block, int delta) {
+        long bytes = delta * (long) block.getSize();
+        if (block.isDirect()) {
+            directBlocks.addAndGet(delta);
+            directBlockBytes.addAndGet(bytes);
+        } else {
+            heapBlocks.addAndGet(delta);
+            heapBlockBytes.addAndGet(bytes);
+        }
+    }
+
+    public long getDirectBlocks() {
+        return directBlocks.get();
+    }
+
+    public long getDirectBlockBytes() {
+        return directBlockBytes.get();
+    }
+
+    public long getHeapBlocks() {
+        return heapBlocks.get();
+    }
+
+    public long getHeapBlockBytes() {
+        return heapBlockBytes.get();
+    }
+
+    public long getSlabs() {
+        return slabs.get();
+    }
+
+    public long getMappedBlocks() {
+        return mappedBlocks.get();
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    /* Walks every block and copies the contents of every allocation, so it's
+       only meant for debugging. */
     public HeapStats getStatistics() {
-        Iterator<Nursery> it = nurseries.iterator();
-        ArrayList<NurseryStats> nurseryStats = new ArrayList(nurseries.size());
-        while (it.hasNext()) {
-            nurseryStats.add(it.next().getStatistics());
+        ArrayList<NurseryStats> nurseryStats = new ArrayList<NurseryStats>();
+        for (Nursery nursery = firstNursery; nursery != null; nursery = nursery.getNext()) {
+            nurseryStats.add(nursery.getStatistics());
         }
         return new HeapStats(nurserySize, blockSize, miniBlockSize, nurseryStats);
     }
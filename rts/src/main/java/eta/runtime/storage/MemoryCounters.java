@@ -0,0 +1,43 @@
+package eta.runtime.storage;
+
+/* Counts the bytes that a LocalHeap has allocated and freed, as rounded up to
+   the slot or miniblock they occupy. Only the owner updates the counters, so
+   they're plain fields and other threads may read values that are slightly out
+   of date. */
+public class MemoryCounters {
+    public long allocatedDirect;
+    public long allocatedHeap;
+    public long freedDirect;
+    public long freedHeap;
+    public long allocations;
+    public long frees;
+
+    public final void allocated(int bytes, boolean direct) {
+        if (direct) allocatedDirect += bytes;
+        else allocatedHeap += bytes;
+        allocations++;
+    }
+
+    public final void freed(int bytes, boolean direct) {
+        if (direct) freedDirect += bytes;
+        else freedHeap += bytes;
+        frees++;
+    }
+
+    public final long getLiveDirectBytes() {
+        return allocatedDirect - freedDirect;
+    }
+
+    public final long getLiveHeapBytes() {
+        return allocatedHeap - freedHeap;
+    }
+
+    public final void add(MemoryCounters other) {
+        allocatedDirect += other.allocatedDirect;
+        allocatedHeap   += other.allocatedHeap;
+        freedDirect     += other.freedDirect;
+        freedHeap       += other.freedHeap;
+        allocations     += other.allocations;
+        frees           += other.frees;
+    }
+}
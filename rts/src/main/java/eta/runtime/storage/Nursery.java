@@ -1,6 +1,5 @@
 package eta.runtime.storage;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
@@ -33,40 +32,59 @@ public class Nursery {
         }
     }
 
+    public long getAddress() {
+        return startAddress;
+    }
+
     public Nursery getNext() {
         return next;
     }
 
-    public Block allocateBlocks(int n, ByteBuffer buffer, ManagedHeap heap) {
+    /* Returns a block that's been assigned the address range of `n` blocks but
+       is yet to be initialized. */
+    public Block allocateBlocks(int n, ManagedHeap heap) {
         int baseIndex = nextIndex.getAndAdd(n);
         if (baseIndex + n > numBlocks)
-            return allocateBlocksFromNext(n, buffer, heap);
+            return allocateBlocksFromNext(n, heap);
         long address = startAddress + baseIndex * blockSize;
         Block startBlock = blocks[baseIndex];
-        startBlock.init(address, miniBlockSize, buffer);
+        startBlock.setAddress(address);
         for (int i = 1; i < n; i++) {
             blocks[baseIndex + i] = startBlock;
         }
         return blocks[baseIndex];
     }
 
+    /* Gives the first `n` blocks of the nursery to `block`, which starts at or
+       before this nursery. Must be done before the nursery is published. */
+    public void reserveBlocks(int n, Block block) {
+        for (int i = 0; i < n; i++) {
+            blocks[i] = block;
+        }
+        nextIndex.set(n);
+    }
+
+    public boolean setNext(Nursery expected, Nursery nursery) {
+        return nextUpdater.compareAndSet(this, expected, nursery);
+    }
+
     public Block getBlock(int blockIndex) {
         return blocks[blockIndex];
     }
 
-    private Block allocateBlocksFromNext(int n, ByteBuffer buffer, ManagedHeap heap) {
+    private Block allocateBlocksFromNext(int n, ManagedHeap heap) {
         Nursery curNext = next;
         if (curNext == null) {
             Nursery nursery =
                 heap.allocateNursery(startAddress + numBlocks * blockSize);
             if (nextUpdater.compareAndSet(this, null, nursery)) {
                 heap.setActiveNursery(nursery);
-                return nursery.allocateBlocks(n, buffer, heap);
+                return nursery.allocateBlocks(n, heap);
             } else {
                 curNext = next;
             }
         }
-        return curNext.allocateBlocks(n, buffer, heap);
+        return curNext.allocateBlocks(n, heap);
     }
 
     /* Monitoring */
@@ -76,11 +94,11 @@ public class Nursery {
         for (Block block: blocks) {
             if (block.isActive()) {
                 long address = block.getAddress();
-                if (address == lastAddress) continue;
+                /* Skip the rest of a block and blocks that start in an earlier
+                   nursery. */
+                if (address == lastAddress || address < startAddress) continue;
                 blockStats.add(block.getStatistics());
                 lastAddress = address;
-            } else {
-                break;
             }
         }
         return new NurseryStats(startAddress, blockStats);
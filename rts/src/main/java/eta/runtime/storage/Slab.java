@@ -0,0 +1,108 @@
+package eta.runtime.storage;
+
+import java.util.List;
+import java.util.LinkedList;
+
+/* A block that's carved up into slots of a single size class for small
+   allocations. Free slots are kept in a free list so that both allocation and
+   freeing are O(1). Like the rest of the block, it's only ever mutated by its
+   owner. */
+public class Slab {
+    /* Size Classes */
+    public static final int[] SIZE_CLASSES = { 8, 16, 32, 48, 64, 96, 128, 192, 256 };
+    public static final int NUM_SIZE_CLASSES = SIZE_CLASSES.length;
+    public static final int MAX_SIZE = SIZE_CLASSES[NUM_SIZE_CLASSES - 1];
+
+    /* Maps (size + 7) / 8 to the smallest size class that fits it. */
+    private static final byte[] sizeClassTable = new byte[(MAX_SIZE >>> 3) + 1];
+
+    static {
+        int sizeClass = 0;
+        for (int i = 0; i < sizeClassTable.length; i++) {
+            if ((i << 3) > SIZE_CLASSES[sizeClass]) sizeClass++;
+            sizeClassTable[i] = (byte) sizeClass;
+        }
+    }
+
+    /* Should only be called with sizes <= MAX_SIZE. */
+    public static int sizeClass(int size) {
+        return sizeClassTable[(size + 7) >>> 3];
+    }
+
+    private final int slotSize;
+    private final int numSlots;
+
+    /* The free list, threaded through the indices of the slots. */
+    private final int[] nextFree;
+    private int freeHead;
+    private int numFree;
+
+    /* The allocated slots, for guarding against double frees and monitoring. */
+    private final long[] allocated;
+
+    public Slab(int slotSize, int numSlots) {
+        this.slotSize  = slotSize;
+        this.numSlots  = numSlots;
+        this.nextFree  = new int[numSlots];
+        this.allocated = new long[(numSlots + 63) >>> 6];
+        for (int i = 0; i < numSlots; i++) {
+            nextFree[i] = i + 1;
+        }
+        this.freeHead = 0;
+        this.numFree  = numSlots;
+    }
+
+    public final int getSlotSize() {
+        return slotSize;
+    }
+
+    public final boolean isFull() {
+        return numFree == 0;
+    }
+
+    public final boolean isEmpty() {
+        return numFree == numSlots;
+    }
+
+    /* Returns the index of the slot or -1 if the slab is full. */
+    public final int allocate() {
+        int index = freeHead;
+        if (index == numSlots) return -1;
+        freeHead = nextFree[index];
+        allocated[index >>> 6] |= 1L << index;
+        numFree--;
+        return index;
+    }
+
+    /* Returns false if the slot wasn't allocated. */
+    public final boolean free(int index) {
+        long bit = 1L << index;
+        if ((allocated[index >>> 6] & bit) == 0) return false;
+        allocated[index >>> 6] &= ~bit;
+        nextFree[index] = freeHead;
+        freeHead = index;
+        numFree++;
+        return true;
+    }
+
+    /* Monitoring */
+    public final List<Span> getSpans() {
+        LinkedList<Span> spans = new LinkedList<Span>();
+        int freeSlots = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if ((allocated[i >>> 6] & (1L << i)) != 0) {
+                if (freeSlots > 0) {
+                    spans.add(new Span(false, freeSlots));
+                    freeSlots = 0;
+                }
+                spans.add(new Span(true, 1));
+            } else {
+                freeSlots++;
+            }
+        }
+        if (freeSlots > 0) {
+            spans.add(new Span(false, freeSlots));
+        }
+        return spans;
+    }
+}
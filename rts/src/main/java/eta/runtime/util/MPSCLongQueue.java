@@ -85,6 +85,11 @@ public class MPSCLongQueue {
         return result;
     }
 
+    /* The sequence number of the next write. */
+    public long getWriteSequence() {
+        return writeSequence.get();
+    }
+
     public void write(long val) {
         long sequence = writeSequence.getAndIncrement();
         int iteration = (int)(sequence >>> chunkBits);
@@ -0,0 +1,109 @@
+package eta.runtime.util;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* A bounded, lock-free work-stealing deque based on the Chase-Lev algorithm.
+
+   The owner thread pushes and pops at the bottom end (LIFO), while any number
+   of thieves steal from the top end (FIFO). Only the owner may call push()
+   and pop(), everything else is safe to call from any thread.
+
+   The capacity is rounded up to the next power of 2 and push() reports failure
+   when the deque is full so that the caller can decide where the overflow
+   should go. */
+public class WorkStealingDeque<E> {
+
+    private final AtomicReferenceArray<E> elements;
+
+    /* Cached constants */
+    private final int capacity;
+    private final int mask;
+
+    /* Thieves take from here. */
+    private volatile long top;
+    /* The owner pushes and pops from here. */
+    private volatile long bottom;
+
+    private static final AtomicLongFieldUpdater<WorkStealingDeque> topUpdater
+        = AtomicLongFieldUpdater.newUpdater(WorkStealingDeque.class, "top");
+
+    public WorkStealingDeque(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("WorkStealingDeque must have a positive capacity.");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size != capacity) size <<= 1;
+        this.elements = new AtomicReferenceArray<E>(size);
+        this.capacity = size;
+        this.mask     = size - 1;
+    }
+
+    public final int capacity() {
+        return capacity;
+    }
+
+    public final int size() {
+        long size = bottom - top;
+        return (size < 0)? 0 : (int) size;
+    }
+
+    public final boolean isEmpty() {
+        return bottom <= top;
+    }
+
+    /* Owner only. Returns false if the deque is full. */
+    public final boolean push(E e) {
+        long b = bottom;
+        long t = top;
+        if (b - t >= capacity) return false;
+        elements.set((int)(b & mask), e);
+        bottom = b + 1;
+        return true;
+    }
+
+    /* Owner only. Returns the most recently pushed element or null if the deque
+       is empty. */
+    public final E pop() {
+        long b = bottom - 1;
+        bottom = b;
+        long t = top;
+        if (t > b) {
+            /* The deque was empty. */
+            bottom = b + 1;
+            return null;
+        }
+        int i = (int)(b & mask);
+        E e = elements.get(i);
+        if (t == b) {
+            /* This is the last element, so we race with the thieves for it. */
+            if (!topUpdater.compareAndSet(this, t, t + 1)) {
+                e = null;
+            } else {
+                elements.compareAndSet(i, e, null);
+            }
+            bottom = b + 1;
+        } else {
+            elements.set(i, null);
+        }
+        return e;
+    }
+
+    /* Any thread. Returns the least recently pushed element or null if the deque
+       is empty. */
+    public final E steal() {
+        for (;;) {
+            long t = top;
+            long b = bottom;
+            if (t >= b) return null;
+            int i = (int)(t & mask);
+            E e = elements.get(i);
+            if (topUpdater.compareAndSet(this, t, t + 1)) {
+                /* The owner may have already wrapped around and reused the slot,
+                   so only clear it if it still contains what we stole. */
+                elements.compareAndSet(i, e, null);
+                return e;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package eta.runtime.concurrent;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.stg.TSO;
+
+public class FutureCallbacksTest {
+
+    @Test
+    public void testPlainFutureIsPolled() {
+        FutureTask<Object> future = new FutureTask<Object>(new Runnable() {
+                @Override
+                public void run() {}
+            }, null);
+        assertNull(FutureCallbacks.onComplete(future, new TSO(null)));
+    }
+
+    @Test
+    public void testCompletionClearsWaiter() {
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        AtomicReference<TSO> waiter = FutureCallbacks.onComplete(future, new TSO(null));
+        assertNotNull(waiter.get());
+        future.complete(null);
+        assertNull(waiter.get());
+    }
+
+    /* A wait that gives up before the future completes must not leave the TSO
+       reachable from the future. */
+    @Test
+    public void testClearedWaiterReleasesTSO() {
+        CompletableFuture<Object> future = new CompletableFuture<Object>();
+        TSO tso = new TSO(null);
+        WeakReference<TSO> ref = new WeakReference<TSO>(tso);
+        for (int i = 0; i < 100; i++) {
+            FutureCallbacks.onComplete(future, tso).set(null);
+        }
+        tso = null;
+        for (int i = 0; i < 10 && ref.get() != null; i++) {
+            System.gc();
+        }
+        assertNull(ref.get());
+        future.complete(null);
+    }
+}
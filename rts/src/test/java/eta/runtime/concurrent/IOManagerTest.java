@@ -0,0 +1,73 @@
+package eta.runtime.concurrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.IllegalBlockingModeException;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.stg.TSO;
+
+public class IOManagerTest {
+
+    Pipe pipe;
+
+    @Before
+    public void init() throws IOException {
+        pipe = Pipe.open();
+    }
+
+    private void close() throws IOException {
+        pipe.source().close();
+        pipe.sink().close();
+    }
+
+    /* The TSO isn't bound to a Capability, so signalling it does nothing and the
+       registration has to be polled. */
+    private static IOManager.Registration register(java.nio.channels.SelectableChannel channel,
+                                                   int ops) {
+        IOManager.Registration r = new IOManager.Registration(channel, ops, new TSO(null));
+        IOManager.register(r);
+        return r;
+    }
+
+    private static void awaitDone(IOManager.Registration r) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!r.isDone()) {
+            assertTrue("The registration completes", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testBlockingChannelFails() throws Exception {
+        try {
+            IOManager.Registration r = register(pipe.source(), SelectionKey.OP_READ);
+            awaitDone(r);
+            assertTrue(r.getException() instanceof IllegalBlockingModeException);
+        } finally {
+            close();
+        }
+    }
+
+    @Test
+    public void testUnsupportedOpsFailWithoutLosingWaiters() throws Exception {
+        try {
+            pipe.source().configureBlocking(false);
+            IOManager.Registration reader = register(pipe.source(), SelectionKey.OP_READ);
+            IOManager.Registration writer = register(pipe.source(), SelectionKey.OP_WRITE);
+            awaitDone(writer);
+            assertTrue(writer.getException() instanceof IllegalArgumentException);
+            assertFalse(reader.isDone());
+            pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+            awaitDone(reader);
+            assertNull(reader.getException());
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package eta.runtime.concurrent;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.TSO;
+import eta.runtime.stg.Value;
+
+/* The TSOs aren't bound to Capabilities, so the values handed off to them are
+   checked directly instead of running them. */
+public class MVarTest {
+
+    private static Closure value() {
+        return new Value() {};
+    }
+
+    private static TSO tso() {
+        return new TSO(null);
+    }
+
+    @Test
+    public void testTakersAreServedInOrder() {
+        MVar mvar = new MVar(null);
+        TSO t1 = tso(), t2 = tso(), t3 = tso();
+        assertNull(mvar.takeOrQueue(t1));
+        assertNull(mvar.takeOrQueue(t2));
+        assertNull(mvar.takeOrQueue(t3));
+        Closure v1 = value(), v2 = value(), v3 = value();
+        assertTrue(mvar.putOrQueue(tso(), v1));
+        assertSame(v1, t1.handoff);
+        assertNull(t2.handoff);
+        assertTrue(mvar.tryPut(v2));
+        assertSame(v2, t2.handoff);
+        assertTrue(mvar.tryPut(v3));
+        assertSame(v3, t3.handoff);
+        assertNull("Every value went straight to a taker", mvar.value);
+    }
+
+    @Test
+    public void testPuttersAreServedInOrder() {
+        Closure v0 = value(), v1 = value(), v2 = value();
+        MVar mvar = new MVar(v0);
+        TSO p1 = tso(), p2 = tso();
+        assertFalse(mvar.putOrQueue(p1, v1));
+        assertFalse(mvar.putOrQueue(p2, v2));
+        assertSame(v0, mvar.tryTake());
+        assertNull("The put of p1 completed", p1.handoff);
+        assertSame(v2, p2.handoff);
+        assertSame(v1, mvar.tryTake());
+        assertNull(p2.handoff);
+        assertSame(v2, mvar.tryTake());
+        assertNull(mvar.tryTake());
+    }
+
+    @Test
+    public void testReadersAheadOfTakerSeeValue() {
+        MVar mvar = new MVar(null);
+        TSO r1 = tso(), t = tso(), r2 = tso();
+        assertNull(mvar.readOrQueue(r1));
+        assertNull(mvar.takeOrQueue(t));
+        assertNull(mvar.readOrQueue(r2));
+        Closure v = value();
+        assertTrue(mvar.tryPut(v));
+        assertSame(v, r1.handoff);
+        assertSame(v, t.handoff);
+        assertNull("The taker got the value first", r2.handoff);
+        assertNull(mvar.value);
+    }
+
+    @Test
+    public void testCancelledWaitersAreSkipped() {
+        Closure v0 = value(), v1 = value(), v2 = value();
+        MVar mvar = new MVar(null);
+        TSO t1 = tso(), t2 = tso();
+        mvar.takeOrQueue(t1);
+        mvar.takeOrQueue(t2);
+        mvar.cancelTake(t1);
+        assertTrue(mvar.tryPut(v0));
+        assertNull(t1.handoff);
+        assertSame(v0, t2.handoff);
+        TSO p1 = tso(), p2 = tso();
+        assertTrue(mvar.tryPut(v0));
+        mvar.putOrQueue(p1, v1);
+        mvar.putOrQueue(p2, v2);
+        mvar.cancel(p1);
+        assertSame(v0, mvar.tryTake());
+        assertSame(v2, mvar.tryTake());
+        assertNull(mvar.tryTake());
+    }
+
+    @Test
+    public void testCancelAfterHandoffEmpty() {
+        MVar mvar = new MVar(null);
+        TSO t = tso();
+        mvar.takeOrQueue(t);
+        Closure v = value();
+        assertTrue(mvar.tryPut(v));
+        /* The taker was interrupted before it picked the value up. */
+        mvar.cancelTake(t);
+        assertNull(t.handoff);
+        assertSame(v, mvar.tryTake());
+    }
+
+    @Test
+    public void testCancelAfterHandoffRefilled() {
+        MVar mvar = new MVar(null);
+        TSO t = tso(), p = tso();
+        mvar.takeOrQueue(t);
+        Closure v1 = value(), v2 = value(), v3 = value();
+        assertTrue(mvar.tryPut(v1));
+        assertSame(v1, t.handoff);
+        assertTrue(mvar.tryPut(v2));
+        assertFalse(mvar.putOrQueue(p, v3));
+        mvar.cancelTake(t);
+        /* No value is lost and they're taken in the order they were put. */
+        assertSame(v1, mvar.tryTake());
+        assertSame(v2, mvar.tryTake());
+        assertNull(p.handoff);
+        assertSame(v3, mvar.tryTake());
+        assertNull(mvar.tryTake());
+    }
+}
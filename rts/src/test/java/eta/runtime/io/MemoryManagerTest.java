@@ -2,8 +2,15 @@ package eta.runtime.io;
 
 import static eta.runtime.io.MemoryManager.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import static java.nio.ByteBuffer.*;
+import static java.nio.ByteOrder.*;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
 
 import static java.util.Arrays.*;
 import java.util.Arrays;
@@ -16,6 +23,8 @@ import static org.junit.Assume.*;
     
 import static org.hamcrest.CoreMatchers.*;
 
+import eta.runtime.stg.Capability;
+
 public class MemoryManagerTest {
 
     Random rnd=new Random();
@@ -89,7 +98,6 @@ public class MemoryManagerTest {
         allocateBuffer(-1,true);
     }
     @Test
-    @Ignore
     public void allocateLargeBuffer() {
         allocateBuffer(4194305,true);
     }
@@ -173,6 +181,54 @@ public class MemoryManagerTest {
                    dest,is(src));
     }
 
+    @Test
+    public void testMoveOverlapping() {
+        for (boolean direct : new boolean[] { true, false }) {
+            byte[] bs = rndBytes(64);
+            long addr = allocateBuffer(64, direct);
+            set(addr, bs);
+            move(addr, addr + 5, 40);
+            byte[] expected = copyOf(bs, 64);
+            System.arraycopy(bs, 0, expected, 5, 40);
+            assertThat("Moving forwards over itself keeps the source bytes",
+                       getBytes(addr, 0, 64), is(expected));
+            set(addr, bs);
+            move(addr + 13, addr, 40);
+            expected = copyOf(bs, 64);
+            System.arraycopy(bs, 13, expected, 0, 40);
+            assertThat("Moving backwards over itself keeps the source bytes",
+                       getBytes(addr, 0, 64), is(expected));
+        }
+    }
+
+    @Test
+    public void testCompareAddresses() {
+        byte[] bs = rndBytes(37);
+        long a1 = allocateAndSet(bs);
+        long a2 = allocateAndSet(bs);
+        assertThat("Equal ranges compare equal", compare(a1, a2, 37), is(0));
+        for (int i : new int[] { 0, 7, 8, 20, 36 }) {
+            set(a2 + i, (byte) (bs[i] ^ 0x80), 1);
+            int cmp = compare(a1, a2, 37);
+            assertThat("The first mismatching byte is compared unsigned",
+                       cmp, is((bs[i] & 0xFF) - ((bs[i] ^ 0x80) & 0xFF)));
+            set(a2 + i, bs[i], 1);
+        }
+        assertThat("Comparing with offsets",
+                   compare(a1, 3, a2, 3, 30), is(0));
+    }
+
+    @Test
+    public void testSetHeap() {
+        long addr = allocateBuffer(100, false);
+        set(addr, (byte) 0x7F, 100);
+        set(addr + 3, (byte) 0, 90);
+        byte[] expected = repeat(100, 0x7F);
+        fill(expected, 3, 93, (byte) 0);
+        assertThat("Only the given range is set",
+                   getBytes(addr, 0, 100), is(expected));
+    }
+
     @Test
     public void testCompare() {
         byte[] ones = repeat(16,1);
@@ -214,6 +270,28 @@ public class MemoryManagerTest {
         
     }
 
+    @Test
+    public void testChrIndexEveryPosition() {
+        for (byte c : new byte[] { 0, 1, 10, (byte) 0x80, (byte) 0xFF }) {
+            for (int pos = 0; pos < 40; pos++) {
+                /* Surround the byte with values that differ from it in one bit. */
+                byte[] bs = repeat(40, c ^ 1);
+                bs[39 - (pos % 3)] = (byte) (c ^ 0x80);
+                bs[pos] = c;
+                for (ByteOrder order : new ByteOrder[] { BIG_ENDIAN, LITTLE_ENDIAN }) {
+                    ByteBuffer b = buffer(bs).order(order);
+                    assertThat("It finds the byte wherever it is",
+                               chrIndex(b, c, 40), is(pos));
+                    assertThat("It leaves the position past the byte",
+                               b.position(), is(pos + 1));
+                }
+                long addr = allocateAndSet(bs);
+                assertThat(chrOffset(addr, 0, 40, c), is(pos));
+                assertThat(chrOffset(addr, 0, pos, c), is(pos));
+            }
+        }
+    }
+
     @Test
     public void testChr() {
         ByteBuffer b = buffer(new byte[16]);
@@ -241,6 +319,69 @@ public class MemoryManagerTest {
                    "it returns its buffer index", result,is(5));
     }
     
+    @Test
+    public void testMapFile() throws IOException {
+        File file = File.createTempFile("eta-mapped", ".bin");
+        file.deleteOnExit();
+        byte[] bs = new byte[10000];
+        rnd.nextBytes(bs);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(bs);
+            FileChannel channel = raf.getChannel();
+            long addr = mapFile(channel, 100, 9000,
+                                FileChannel.MapMode.READ_WRITE);
+            assertThat("The whole region is allocated", allocatedSize(addr), is(9000));
+            assertThat("It reads the file at the offset",
+                       getBytes(addr, 0, 9000), is(copyOfRange(bs, 100, 9100)));
+            putInt(addr + 8996, 0x01020304);
+            free(addr);
+            ByteBuffer b = allocate(4);
+            channel.read(b, 9096);
+            assertThat("Writes go through to the file", b.getInt(0), is(0x01020304));
+            long roAddr = mapFile(channel, 0, 10,
+                                  FileChannel.MapMode.READ_ONLY);
+            assertThat(get(roAddr + 9), is(bs[9]));
+            try {
+                put(roAddr, (byte) 0);
+                fail("Writing to a read-only mapping should throw");
+            } catch (ReadOnlyBufferException e) {}
+            free(roAddr);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testStatsIncludeWorkerCapabilities() throws InterruptedException {
+        MemoryManagerStats stats = getStats();
+        final long before = stats.getTotalAllocatedBytes();
+        final Capability[] worker = new Capability[1];
+        Thread t = new Thread() {
+                @Override
+                public void run() {
+                    worker[0] = Capability.getLocal(true);
+                    allocateBuffer(1024, true);
+                }
+            };
+        t.start();
+        t.join();
+        try {
+            CapabilityMemoryStats workerStats = null;
+            for (CapabilityMemoryStats capStats: stats.getCapabilities()) {
+                if (capStats.isWorker() && capStats.getId() == worker[0].id) {
+                    workerStats = capStats;
+                }
+            }
+            assertNotNull("The worker Capability is reported", workerStats);
+            assertThat(workerStats.getAllocatedDirectBytes(), is(1024L));
+            assertTrue("The totals include the worker's allocation",
+                       stats.getTotalAllocatedBytes() - before >= 1024);
+        } finally {
+            worker[0].destroyWorker();
+        }
+    }
+
     // Utils
 
     private void debug(ByteBuffer b) {
@@ -0,0 +1,39 @@
+package eta.runtime.parallel;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.StgContext;
+import eta.runtime.thunk.UpdatableThunk;
+
+public class ParallelTest {
+
+    public static final class Unevaluated extends UpdatableThunk {
+        @Override
+        public Closure thunkEnter(StgContext context) {
+            return null;
+        }
+    }
+
+    @Test
+    public void testRetiredWorkerCountsLeftoverSparks() throws InterruptedException {
+        final SparkCounters before = Parallel.getSparkStats();
+        Thread t = new Thread() {
+                @Override
+                public void run() {
+                    Capability worker = Capability.getLocal(true);
+                    /* Pushed directly, since newSpark would run the idle loop. */
+                    for (int i = 0; i < 3; i++) {
+                        assertTrue(worker.sparks.push(new Unevaluated()));
+                    }
+                    worker.destroyWorker();
+                }
+            };
+        t.start();
+        t.join();
+        SparkCounters after = Parallel.getSparkStats();
+        assertEquals(3, after.discarded.get() - before.discarded.get());
+    }
+}
@@ -0,0 +1,189 @@
+package eta.runtime.stm;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.TSO;
+import eta.runtime.stg.Value;
+
+public class ContentionManagerTest {
+
+    /* The atomically site that aborts. */
+    private static final Closure site = new Value() {};
+
+    /* An attempt start that makes the priority last for two seconds. */
+    private static long longAgo() {
+        return System.nanoTime() - 1000000000L;
+    }
+
+    private static TSO tso() {
+        TSO tso = new TSO(null);
+        tso.trec = TransactionRecord.start(tso);
+        return tso;
+    }
+
+    /* Runs `action` on a new thread and checks that it stays blocked until
+       `release` runs. */
+    private static void assertBlockedUntil(Runnable action, Runnable release)
+        throws InterruptedException {
+        Thread t = new Thread(action);
+        t.start();
+        t.join(50);
+        assertTrue("It waits", t.isAlive());
+        release.run();
+        t.join(5000);
+        assertFalse("It goes on once released", t.isAlive());
+    }
+
+    @Test
+    public void testDefaultManager() {
+        assertEquals("none", Runtime.getSTMContentionManager());
+        assertTrue(ContentionManager.getManager()
+                   instanceof ContentionManager.NoContentionManager);
+    }
+
+    @Test
+    public void testManagerFollowsOption() {
+        String old = Runtime.getSTMContentionManager();
+        try {
+            /* The manager can be changed after transactions have run. */
+            ContentionManager.getManager();
+            Runtime.setSTMContentionManager("karma");
+            assertTrue(ContentionManager.getManager()
+                       instanceof ContentionManager.KarmaContentionManager);
+            Runtime.setSTMContentionManager("backoff");
+            ContentionManager manager = ContentionManager.getManager();
+            assertTrue(manager instanceof ContentionManager.BackoffContentionManager);
+            assertFalse(manager instanceof ContentionManager.KarmaContentionManager);
+            assertSame(manager, ContentionManager.getManager());
+        } finally {
+            Runtime.setSTMContentionManager(old);
+        }
+    }
+
+    @Test
+    public void testBackoffWindow() {
+        long min = ContentionManager.MIN_BACKOFF_NANOS;
+        assertEquals(min, ContentionManager.BackoffContentionManager.backoffWindow(1));
+        assertEquals(2 * min, ContentionManager.BackoffContentionManager.backoffWindow(2));
+        assertEquals(512 * min, ContentionManager.BackoffContentionManager.backoffWindow(10));
+        assertEquals(ContentionManager.MAX_BACKOFF_NANOS,
+                     ContentionManager.BackoffContentionManager.backoffWindow(11));
+        assertEquals(ContentionManager.MAX_BACKOFF_NANOS,
+                     ContentionManager.BackoffContentionManager.backoffWindow(1000));
+    }
+
+    @Test
+    public void testAbortsBySite() {
+        Closure other = new Value() {};
+        TSO tso = tso();
+        for (int i = 1; i <= 3; i++) {
+            ContentionManager.restart(tso, site, i, 0, 0);
+        }
+        ContentionManager.restart(tso, other, 1, 0, 0);
+        ContentionManager.finished(tso);
+        assertEquals(Long.valueOf(3),
+                     ContentionManager.getAbortsBySite().get(site.getClass().getName()));
+        assertEquals(Long.valueOf(1),
+                     ContentionManager.getAbortsBySite().get(other.getClass().getName()));
+    }
+
+    @Test
+    public void testKarmaPriority() throws InterruptedException {
+        String old = Runtime.getSTMContentionManager();
+        Runtime.setSTMContentionManager("karma");
+        final TSO owner = tso(), other = tso();
+        try {
+            ContentionManager.restart(owner, site, 1, 100, longAgo());
+            /* The holder and transactions with more karma commit right away. */
+            ContentionManager.getManager().committing(owner, 100);
+            ContentionManager.getManager().committing(other, 200);
+            /* A transaction with less karma can't take the priority over. */
+            ContentionManager.restart(other, site, 1, 50, longAgo());
+            assertBlockedUntil(new Runnable() {
+                    @Override
+                    public void run() {
+                        ContentionManager.getManager().committing(other, 50);
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        ContentionManager.finished(owner);
+                    }
+                });
+        } finally {
+            ContentionManager.finished(owner);
+            ContentionManager.finished(other);
+            Runtime.setSTMContentionManager(old);
+        }
+    }
+
+    @Test
+    public void testKarmaPriorityExpires() {
+        String old = Runtime.getSTMContentionManager();
+        Runtime.setSTMContentionManager("karma");
+        TSO owner = tso(), other = tso();
+        try {
+            long start = System.nanoTime();
+            ContentionManager.restart(owner, site, 1, 100, 0);
+            /* The holder never finishes, so this waits for the priority to lapse. */
+            ContentionManager.getManager().committing(other, 50);
+            assertTrue(System.nanoTime() - start >= ContentionManager.PRIORITY_TIMEOUT_NANOS);
+        } finally {
+            ContentionManager.finished(owner);
+            Runtime.setSTMContentionManager(old);
+        }
+    }
+
+    @Test
+    public void testSerialMode() throws InterruptedException {
+        int old = Runtime.getSTMSerialAfterAborts();
+        Runtime.setSTMSerialAfterAborts(2);
+        final TSO owner = tso(), other = tso();
+        try {
+            ContentionManager.restart(owner, site, 1, 0, longAgo());
+            assertFalse(ContentionManager.yieldsToSerial(other.trec));
+            ContentionManager.restart(owner, site, 2, 0, longAgo());
+            assertTrue("Others can't commit updates",
+                       ContentionManager.yieldsToSerial(other.trec));
+            assertFalse(ContentionManager.yieldsToSerial(owner.trec));
+            assertBlockedUntil(new Runnable() {
+                    @Override
+                    public void run() {
+                        ContentionManager.starting(other);
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        ContentionManager.finished(owner);
+                    }
+                });
+            assertFalse(ContentionManager.yieldsToSerial(other.trec));
+        } finally {
+            ContentionManager.finished(owner);
+            Runtime.setSTMSerialAfterAborts(old);
+        }
+    }
+
+    @Test
+    public void testSerialModeExpires() {
+        int old = Runtime.getSTMSerialAfterAborts();
+        Runtime.setSTMSerialAfterAborts(1);
+        TSO owner = tso(), other = tso();
+        try {
+            long start = System.nanoTime();
+            ContentionManager.restart(owner, site, 1, 0, 0);
+            long deadline = start + 5000000000L;
+            while (ContentionManager.yieldsToSerial(other.trec)) {
+                assertTrue("Serial mode lapses", System.nanoTime() < deadline);
+                Thread.yield();
+            }
+            assertTrue(System.nanoTime() - start >= ContentionManager.PRIORITY_TIMEOUT_NANOS);
+        } finally {
+            ContentionManager.finished(owner);
+            Runtime.setSTMSerialAfterAborts(old);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package eta.runtime.stm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.Value;
+
+public class TransactionLogTest {
+
+    TransactionLog log;
+
+    @Before
+    public void init() {
+        log = new TransactionLog();
+    }
+
+    private static Closure value() {
+        return new Value() {};
+    }
+
+    private static TVar[] tvars(int n) {
+        TVar[] tvars = new TVar[n];
+        for (int i = 0; i < n; i++) {
+            tvars[i] = new TVar(value());
+        }
+        return tvars;
+    }
+
+    /* Adds a read of each TVar to the log. */
+    private void read(TVar[] tvars) {
+        for (TVar tvar: tvars) {
+            Closure c = tvar.currentValue;
+            log.add(tvar, c, c, -1);
+        }
+    }
+
+    @Test
+    public void testLinearLog() {
+        TVar[] tvars = tvars(TransactionLog.INDEX_THRESHOLD);
+        read(tvars);
+        assertEquals(TransactionLog.INDEX_THRESHOLD, log.size());
+        for (int i = 0; i < tvars.length; i++) {
+            assertEquals(i, log.find(tvars[i]));
+            assertSame(tvars[i], log.get(i).tvar);
+        }
+        assertEquals(-1, log.find(new TVar(value())));
+    }
+
+    @Test
+    public void testIndexedLog() {
+        TVar[] tvars = tvars(1000);
+        read(tvars);
+        assertEquals(1000, log.size());
+        for (int i = 0; i < tvars.length; i++) {
+            assertEquals(i, log.find(tvars[i]));
+        }
+        assertEquals(-1, log.find(new TVar(value())));
+        /* A nested entry of a TVar shadows the entry of the enclosing
+           transaction. */
+        log.add(tvars[10], tvars[10].currentValue, value(), 10);
+        assertEquals(1000, log.find(tvars[10]));
+    }
+
+    /* Builds a nest of three transactions on top of `fillers` reads:
+         outer:  a, b
+         middle: a (over outer), c
+         inner:  a (over middle), b (over outer), d
+       and returns the start of the middle and the inner transactions. */
+    private int[] nest(int fillers, TVar a, TVar b, TVar c, TVar d) {
+        read(tvars(fillers));
+        int ia = log.size();
+        log.add(a, a.currentValue, value(), -1);
+        int ib = log.size();
+        log.add(b, b.currentValue, b.currentValue, -1);
+        int middle = log.size();
+        log.add(a, log.get(ia).expectedValue, value(), ia);
+        log.add(c, c.currentValue, c.currentValue, -1);
+        int inner = log.size();
+        log.add(a, log.get(middle).expectedValue, value(), middle);
+        log.add(b, log.get(ib).expectedValue, value(), ib);
+        log.add(d, d.currentValue, d.currentValue, -1);
+        return new int[] { middle, inner };
+    }
+
+    private void testMergeIntoEnclosing(int fillers) {
+        TVar a = new TVar(value()), b = new TVar(value()),
+             c = new TVar(value()), d = new TVar(value());
+        int[] starts = nest(fillers, a, b, c, d);
+        int middle = starts[0], inner = starts[1];
+        TransactionEntry innerB = log.get(inner + 1);
+        /* Committing the inner transaction drops the entry of `a`, which the
+           middle one has, and keeps `b` and `d` as entries of the middle one. */
+        log.merge(inner, middle);
+        assertEquals(inner + 2, log.size());
+        assertEquals(middle, log.find(a));
+        assertEquals(inner, log.find(b));
+        assertSame(innerB, log.get(inner));
+        assertEquals(fillers + 1, log.get(inner).outer);
+        assertEquals(middle + 1, log.find(c));
+        assertEquals(inner + 1, log.find(d));
+        /* The middle transaction is rolled back down to the outer one. */
+        log.rollback(middle);
+        assertEquals(middle, log.size());
+        assertEquals(fillers, log.find(a));
+        assertEquals(fillers + 1, log.find(b));
+        assertEquals(-1, log.find(c));
+        assertEquals(-1, log.find(d));
+    }
+
+    private void testMergeIntoTopLevel(int fillers) {
+        TVar a = new TVar(value()), b = new TVar(value()),
+             c = new TVar(value()), d = new TVar(value());
+        int[] starts = nest(fillers, a, b, c, d);
+        int middle = starts[0], inner = starts[1];
+        /* Aborting the inner transaction keeps only the TVars that no enclosing
+           transaction has. */
+        log.merge(inner, 0);
+        assertEquals(inner + 1, log.size());
+        assertEquals(middle, log.find(a));
+        assertEquals(fillers + 1, log.find(b));
+        assertEquals(middle + 1, log.find(c));
+        assertEquals(inner, log.find(d));
+        assertEquals(-1, log.get(inner).outer);
+    }
+
+    @Test
+    public void testMergeLinear() {
+        testMergeIntoEnclosing(0);
+        log.reset();
+        testMergeIntoTopLevel(0);
+    }
+
+    @Test
+    public void testMergeIndexed() {
+        testMergeIntoEnclosing(100);
+        log.reset();
+        testMergeIntoTopLevel(100);
+    }
+
+    @Test
+    public void testRollbackAcrossIndexThreshold() {
+        TVar[] outer = tvars(TransactionLog.INDEX_THRESHOLD / 2);
+        read(outer);
+        int start = log.size();
+        /* The nested transaction takes the log past the threshold, shadowing
+           some entries of the enclosing one and adding many of its own. */
+        for (int i = 0; i < outer.length; i += 2) {
+            log.add(outer[i], outer[i].currentValue, value(), i);
+        }
+        TVar[] nested = tvars(100);
+        read(nested);
+        log.rollback(start);
+        assertEquals(start, log.size());
+        for (int i = 0; i < outer.length; i++) {
+            assertEquals(i, log.find(outer[i]));
+        }
+        for (TVar tvar: nested) {
+            assertEquals(-1, log.find(tvar));
+        }
+        /* The log keeps working after the rollback. */
+        read(nested);
+        for (int i = 0; i < nested.length; i++) {
+            assertEquals(start + i, log.find(nested[i]));
+        }
+    }
+
+    @Test
+    public void testResetRecyclesEntries() {
+        TVar[] tvars = tvars(20);
+        read(tvars);
+        TransactionEntry first = log.get(0);
+        log.reset();
+        assertEquals(0, log.size());
+        assertNull("The values don't outlive the transaction", first.expectedValue);
+        assertEquals(-1, log.find(tvars[0]));
+        TVar tvar = new TVar(value());
+        assertSame(first, log.add(tvar, tvar.currentValue, tvar.currentValue, -1));
+        assertEquals(0, log.find(tvar));
+    }
+
+    /* Drives random nests of transactions against a plain list that is searched
+       linearly, checking every TVar after each step. */
+    @Test
+    public void testRandomNestsAgainstModel() {
+        Random rnd = new Random(42);
+        TVar[] tvars = tvars(64);
+        List<TVar> model = new ArrayList<TVar>();
+        List<Integer> outers = new ArrayList<Integer>();
+        List<Integer> starts = new ArrayList<Integer>();
+        starts.add(0);
+        for (int step = 0; step < 20000; step++) {
+            int start = starts.get(starts.size() - 1);
+            int op = rnd.nextInt(20);
+            if (op < 14) {
+                TVar tvar = tvars[rnd.nextInt(tvars.length)];
+                int outer = model.lastIndexOf(tvar);
+                if (outer < start) {
+                    log.add(tvar, tvar.currentValue, tvar.currentValue, outer);
+                    model.add(tvar);
+                    outers.add(outer);
+                }
+            } else if (op < 16) {
+                starts.add(model.size());
+            } else if (starts.size() > 1) {
+                starts.remove(starts.size() - 1);
+                int into = (op == 16)? starts.get(starts.size() - 1) : 0;
+                if (op < 18) {
+                    log.merge(start, into);
+                    int kept = start;
+                    for (int i = start; i < model.size(); i++) {
+                        if (outers.get(i) < into) {
+                            model.set(kept, model.get(i));
+                            outers.set(kept, outers.get(i));
+                            kept++;
+                        }
+                    }
+                    truncate(model, kept);
+                    truncate(outers, kept);
+                } else {
+                    log.rollback(start);
+                    truncate(model, start);
+                    truncate(outers, start);
+                }
+            } else if (op == 19) {
+                log.reset();
+                model.clear();
+                outers.clear();
+                starts.clear();
+                starts.add(0);
+            }
+            assertEquals(model.size(), log.size());
+            for (int i = 0; i < model.size(); i++) {
+                assertSame(model.get(i), log.get(i).tvar);
+            }
+            for (TVar tvar: tvars) {
+                assertEquals(model.lastIndexOf(tvar), log.find(tvar));
+            }
+        }
+    }
+
+    private static <A> void truncate(List<A> list, int size) {
+        list.subList(size, list.size()).clear();
+    }
+}
@@ -0,0 +1,108 @@
+package eta.runtime.stm;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.TSO;
+import eta.runtime.stg.Value;
+import eta.runtime.exception.ConflictException;
+
+public class TransactionRecordTest {
+
+    private static Closure value() {
+        return new Value() {};
+    }
+
+    private static TransactionRecord start() {
+        return TransactionRecord.start(new TSO(null));
+    }
+
+    /* Commits a transaction that writes the value to the TVar. */
+    private static void update(TVar tvar, Closure value) {
+        TransactionRecord trec = start();
+        trec.write(tvar, value);
+        assertTrue(trec.commit(Capability.getLocal()));
+    }
+
+    @Test
+    public void testCommitStampsVersion() {
+        TVar x = new TVar(value());
+        Closure newValue = value();
+        TransactionRecord trec = start();
+        trec.write(x, newValue);
+        assertTrue(trec.commit(Capability.getLocal()));
+        assertSame(newValue, x.currentValue);
+        assertTrue("The commit ticks the clock past the read version",
+                   x.version > trec.readVersion);
+    }
+
+    @Test
+    public void testReadAfterCommitExtendsReadVersion() {
+        TVar x = new TVar(value()), y = new TVar(value());
+        TransactionRecord trec = start();
+        Closure xValue = trec.read(x);
+        long readVersion = trec.readVersion;
+        Closure yValue = value();
+        update(y, yValue);
+        /* Nothing read so far has changed, so reading y moves the read version
+           up to its commit. */
+        assertSame(yValue, trec.read(y));
+        assertTrue(trec.readVersion > readVersion);
+        assertTrue(trec.readVersion >= y.version);
+        assertSame(xValue, trec.read(x));
+        trec.write(x, value());
+        assertTrue(trec.commit(Capability.getLocal()));
+    }
+
+    @Test
+    public void testNestedReadExtendsEnclosingReadVersion() {
+        TVar x = new TVar(value()), y = new TVar(value());
+        TransactionRecord trec = start();
+        trec.read(x);
+        TransactionRecord nested = TransactionRecord.start(trec);
+        update(y, value());
+        nested.read(y);
+        assertEquals(nested.readVersion, trec.readVersion);
+        assertTrue(trec.readVersion >= y.version);
+    }
+
+    @Test(expected = ConflictException.class)
+    public void testConflictingReadThrows() {
+        TVar x = new TVar(value()), y = new TVar(value());
+        TransactionRecord trec = start();
+        trec.read(x);
+        /* x changes along with y, so the transaction can't see both. */
+        TransactionRecord other = start();
+        other.write(x, value());
+        other.write(y, value());
+        assertTrue(other.commit(Capability.getLocal()));
+        trec.read(y);
+    }
+
+    @Test
+    public void testStaleReadFailsCommit() {
+        TVar x = new TVar(value()), y = new TVar(value());
+        Closure yValue = y.currentValue;
+        TransactionRecord trec = start();
+        trec.read(x);
+        trec.write(y, value());
+        update(x, value());
+        assertFalse(trec.commit(Capability.getLocal()));
+        assertSame("The update is reverted", yValue, y.currentValue);
+        assertFalse(y.isLocked(trec));
+    }
+
+    @Test
+    public void testUnrelatedCommitPassesValidation() {
+        TVar x = new TVar(value()), y = new TVar(value()), z = new TVar(value());
+        Closure yValue = value();
+        TransactionRecord trec = start();
+        trec.read(x);
+        trec.write(y, yValue);
+        update(z, value());
+        assertTrue(trec.commit(Capability.getLocal()));
+        assertSame(yValue, y.currentValue);
+    }
+}
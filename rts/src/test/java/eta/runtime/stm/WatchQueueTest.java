@@ -0,0 +1,158 @@
+package eta.runtime.stm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.TSO;
+import eta.runtime.stg.Value;
+
+public class WatchQueueTest {
+
+    WatchQueue queue;
+
+    @Before
+    public void init() {
+        queue = new WatchQueue();
+    }
+
+    private static Closure value() {
+        return new Value() {};
+    }
+
+    private static TSO parked() {
+        TSO tso = new TSO(null);
+        tso.park();
+        return tso;
+    }
+
+    private static boolean isAwake(TSO tso) {
+        return tso.blockInfo == STM.awake;
+    }
+
+    private List<WatchQueue.Waiter> waiters() {
+        List<WatchQueue.Waiter> waiters = new ArrayList<WatchQueue.Waiter>();
+        for (WatchQueue.Waiter w = queue.head; w != null; w = w.next) {
+            waiters.add(w);
+        }
+        return waiters;
+    }
+
+    @Test
+    public void testWakeOnlyOnChange() {
+        Closure v1 = value(), v2 = value();
+        TSO t1 = parked(), t2 = parked(), t3 = parked();
+        queue.add(t1, v1);
+        queue.add(t2, v1);
+        queue.add(t3, v2);
+        /* The waiters that read v1 have nothing new to see. */
+        queue.wake(v1);
+        assertFalse(isAwake(t1));
+        assertFalse(isAwake(t2));
+        assertTrue(isAwake(t3));
+        queue.wake(v2);
+        assertTrue(isAwake(t1));
+        assertTrue(isAwake(t2));
+    }
+
+    @Test
+    public void testRemovedWaitersAreUnlinked() {
+        Closure v = value();
+        TSO[] tsos = new TSO[5];
+        WatchQueue.Waiter[] ws = new WatchQueue.Waiter[5];
+        for (int i = 0; i < 5; i++) {
+            tsos[i] = parked();
+            ws[i] = queue.add(tsos[i], v);
+        }
+        /* The head and a waiter in the middle. */
+        queue.remove(ws[4]);
+        queue.remove(ws[2]);
+        queue.remove(ws[2]);
+        queue.wake(value());
+        List<WatchQueue.Waiter> waiters = waiters();
+        assertEquals(3, waiters.size());
+        assertFalse(waiters.contains(ws[4]));
+        assertFalse(waiters.contains(ws[2]));
+        assertFalse(isAwake(tsos[4]));
+        assertFalse(isAwake(tsos[2]));
+        assertTrue(isAwake(tsos[0]));
+        assertTrue(isAwake(tsos[1]));
+        assertTrue(isAwake(tsos[3]));
+    }
+
+    @Test
+    public void testChurnStaysBounded() {
+        Closure v = value();
+        WatchQueue.Waiter live = queue.add(parked(), v);
+        /* A TVar that's read in retry over and over without ever being
+           written, so wake() never runs. */
+        for (int i = 0; i < 10000; i++) {
+            queue.remove(queue.add(parked(), v));
+            assertTrue(waiters().size() <= 4);
+        }
+        assertTrue(waiters().contains(live));
+    }
+
+    @Test
+    public void testConcurrentRemoveDuringWake() throws InterruptedException {
+        final Closure v = value();
+        final ConcurrentLinkedQueue<WatchQueue.Waiter> toRemove
+            = new ConcurrentLinkedQueue<WatchQueue.Waiter>();
+        final AtomicBoolean done = new AtomicBoolean();
+        List<WatchQueue.Waiter> all = new ArrayList<WatchQueue.Waiter>();
+        Thread[] removers = new Thread[2];
+        final List<Set<WatchQueue.Waiter>> removedBy = new ArrayList<Set<WatchQueue.Waiter>>();
+        for (int i = 0; i < removers.length; i++) {
+            final Set<WatchQueue.Waiter> mine = new HashSet<WatchQueue.Waiter>();
+            removedBy.add(mine);
+            removers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (;;) {
+                            WatchQueue.Waiter w = toRemove.poll();
+                            if (w != null) {
+                                queue.remove(w);
+                                mine.add(w);
+                            } else if (done.get()) {
+                                break;
+                            } else {
+                                Thread.yield();
+                            }
+                        }
+                    }
+                };
+            removers[i].start();
+        }
+        /* This thread holds the TVar lock: it's the only one adding and waking. */
+        for (int round = 0; round < 2000; round++) {
+            for (int i = 0; i < 10; i++) {
+                WatchQueue.Waiter w = queue.add(parked(), v);
+                all.add(w);
+                if (i % 3 != 0) toRemove.offer(w);
+            }
+            queue.wake(v);
+        }
+        done.set(true);
+        for (Thread t: removers) {
+            t.join();
+        }
+        Set<WatchQueue.Waiter> removed = new HashSet<WatchQueue.Waiter>();
+        for (Set<WatchQueue.Waiter> mine: removedBy) {
+            removed.addAll(mine);
+        }
+        queue.wake(v);
+        /* Every waiter that wasn't removed is still linked, and only those. */
+        Set<WatchQueue.Waiter> linked = new HashSet<WatchQueue.Waiter>(waiters());
+        for (WatchQueue.Waiter w: all) {
+            assertEquals(!removed.contains(w), linked.contains(w));
+        }
+    }
+}
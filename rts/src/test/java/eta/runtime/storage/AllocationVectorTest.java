@@ -3,6 +3,7 @@ package eta.runtime.storage;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static eta.runtime.TestUtils.*;
 
 public class AllocationVectorTest {
@@ -106,4 +107,24 @@ public class AllocationVectorTest {
         assertEquals(1,  av.free(0));
         assertEquals(0,  av.findFreeAndAllocate(1));
     }
+
+    @Test
+    public void testAllocVecAcrossWords() {
+        av = new AllocationVector(100);
+        assertEquals(0,  av.findFreeAndAllocate(30));
+        assertEquals(30, av.findFreeAndAllocate(10));
+        assertEquals(40, av.findFreeAndAllocate(50));
+        assertEquals(50, av.allocatedSize(40));
+        assertEquals(10, av.free(30));
+        assertEquals(50, av.free(40));
+        /* The freed regions were coalesced with the rest of the free space. */
+        assertEquals(30, av.findFreeAndAllocate(70));
+        assertEquals(-1, av.findFreeAndAllocate(1));
+        assertEquals(30, av.free(0));
+        assertEquals(-1, av.findFreeAndAllocate(31));
+        assertEquals(0,  av.findFreeAndAllocate(30));
+        assertEquals(70, av.free(30));
+        assertEquals(30, av.free(0));
+        assertTrue(av.isEmpty());
+    }
 }
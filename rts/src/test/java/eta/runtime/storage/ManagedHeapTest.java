@@ -4,9 +4,11 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
+import eta.runtime.Runtime;
 import eta.runtime.stg.Capability;
 
 public class ManagedHeapTest {
@@ -130,4 +132,187 @@ public class ManagedHeapTest {
                          new int[] {64}
                      });
     }
+
+    @Test
+    public void testManagedHeapBlockRecycling() {
+        long address1 = heap.allocateBuffer(blockSize, false, cap);
+        long address2 = heap.allocateBuffer(blockSize, false, cap);
+        long address3 = heap.allocateBuffer(blockSize, false, cap);
+        assertEquals(3, getBlocks().size());
+        heap.free(address1);
+        assertEquals(blockSize, heap.getPooledBytes());
+        /* The completely free block is reused instead of allocating a new one. */
+        assertEquals(address1, heap.allocateBuffer(blockSize, false, cap));
+        assertEquals(0, heap.getPooledBytes());
+        /* Direct buffers don't reuse heap blocks. */
+        heap.free(address2);
+        long address4 = heap.allocateBuffer(blockSize, true, cap);
+        assertEquals(4 * blockSize, address4);
+        assertEquals(address2, heap.allocateBuffer(blockSize, false, cap));
+        assertEquals(4, getBlocks().size());
+    }
+
+    @Test
+    public void testManagedHeapLocalFreeRecycles() {
+        long address1 = heap.allocateBuffer(blockSize, false, cap);
+        long address2 = heap.allocateBuffer(blockSize, false, cap);
+        /* The owner frees its own blocks directly, which recycles them too. */
+        heap.attemptFree(address1);
+        assertEquals(blockSize, heap.getPooledBytes());
+        assertEquals(address1, heap.allocateBuffer(blockSize, false, cap));
+    }
+
+    @Test
+    public void testManagedHeapHighWaterMark() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 0);
+        long address1 = heap.allocateBuffer(blockSize, false, cap);
+        long address2 = heap.allocateBuffer(blockSize, false, cap);
+        heap.free(address1);
+        /* The buffer is released, but the address range is kept. */
+        assertEquals(0, heap.getPooledBytes());
+        assertEquals(1, getBlocks().size());
+        assertEquals(address1, heap.allocateBuffer(blockSize, true, cap));
+        assertEquals(2, getBlocks().size());
+    }
+
+    /* Values written through native addresses must be visible through the
+       ByteBuffer API and vice versa. */
+    @Test
+    public void testManagedHeapUnsafeAccess() {
+        Runtime.setUnsafeMemoryAccess(true);
+        try {
+            long address = heap.allocateBuffer(64, true, cap);
+            Block block  = heap.getBlock(address);
+            block.putInt(address, 0x01020304);
+            block.putLong(address + 8, -2L);
+            block.putDouble(address + 16, 1.5);
+            block.putChar(address + 24, 'x');
+            ByteBuffer buffer = block.getBoundedBuffer(address);
+            assertEquals(1, buffer.get(0));
+            assertEquals(0x01020304, buffer.getInt(0));
+            assertEquals(-2L, buffer.getLong(8));
+            assertEquals(1.5, buffer.getDouble(16), 0);
+            assertEquals('x', buffer.getChar(24));
+            buffer.putShort(32, (short) -3);
+            buffer.putFloat(36, 2.5f);
+            assertEquals(-3, block.getShort(address + 32));
+            assertEquals(2.5f, block.getFloat(address + 36), 0);
+            assertEquals(4, block.get(address + 3));
+        } finally {
+            Runtime.setUnsafeMemoryAccess(false);
+        }
+    }
+
+    @Test
+    public void testManagedHeapGetBlockAcrossNurseries() {
+        heap = new ManagedHeap(2, blockSize, miniBlockSize);
+        long[] addresses = new long[40];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = heap.allocateBuffer(blockSize, (i & 1) == 0, cap);
+        }
+        for (int i = addresses.length - 1; i >= 0; i--) {
+            assertEquals(addresses[i], heap.getBlock(addresses[i] + 8).getAddress());
+        }
+        assertEquals(20, heap.getStatistics().getNurseryStats().size());
+    }
+
+    @Test
+    public void testManagedHeapLargerThanNursery() {
+        heap = new ManagedHeap(2, blockSize, miniBlockSize);
+        long address1 = heap.allocateBuffer(blockSize, false, cap);
+        long address2 = heap.allocateBuffer(5 * blockSize, true, cap);
+        /* It starts at a nursery of its own. */
+        assertEquals(address1 + 2 * blockSize, address2);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(address2, heap.getBlock(address2 + i * blockSize + 8).getAddress());
+        }
+        /* The last nursery has a block to spare. */
+        assertEquals(address2 + 5 * blockSize, heap.allocateBuffer(blockSize, false, cap));
+        heap.free(address2);
+        assertEquals(address2, heap.allocateBuffer(5 * blockSize, true, cap));
+    }
+
+    @Test
+    public void testManagedHeapCounters() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, Long.MAX_VALUE, true);
+        MemoryCounters counters = cap.getMemoryCounters();
+        long allocatedDirect = counters.allocatedDirect;
+        long freedHeap = counters.freedHeap;
+        long address1 = heap.allocateBuffer(20, false, cap);
+        long address2 = heap.allocateBuffer(300, true, cap);
+        assertEquals(allocatedDirect + 320, counters.allocatedDirect);
+        assertEquals(1, heap.getSlabs());
+        assertEquals(1, heap.getHeapBlocks());
+        assertEquals(blockSize, heap.getDirectBlockBytes());
+        heap.free(address1);
+        /* Double frees aren't counted. */
+        heap.free(address1);
+        assertEquals(freedHeap + 32, counters.freedHeap);
+        /* The active slab is kept even though it's empty. */
+        assertEquals(1, heap.getSlabs());
+        assertEquals(0, heap.getPooledBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testManagedHeapGetBlockOutOfBounds() {
+        heap.getBlock(blockSize * (nurserySize + 1));
+    }
+
+    @Test
+    public void testManagedHeapSlabSizeClasses() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, Long.MAX_VALUE, true);
+        long address1 = heap.allocateBuffer(7, false, cap);
+        long address2 = heap.allocateBuffer(8, false, cap);
+        long address3 = heap.allocateBuffer(20, false, cap);
+        long address4 = heap.allocateBuffer(33, false, cap);
+        assertEquals(address1 + 8, address2);
+        assertEquals(address1 + blockSize, address3);
+        assertEquals(address1 + 2 * blockSize, address4);
+        assertEquals(8, heap.getBlock(address1).allocatedSize(address1));
+        assertEquals(32, heap.getBlock(address3).allocatedSize(address3));
+        assertEquals(48, heap.getBlock(address4).allocatedSize(address4));
+        /* Direct allocations have their own slabs. */
+        assertEquals(address1 + 3 * blockSize, heap.allocateBuffer(8, true, cap));
+        /* Large allocations still go through the allocation vectors. */
+        assertEquals(address1 + 4 * blockSize, heap.allocateBuffer(257, false, cap));
+    }
+
+    @Test
+    public void testManagedHeapSlabFreeList() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, Long.MAX_VALUE, true);
+        int slots = blockSize / 256;
+        long[] addresses = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            addresses[i] = heap.allocateBuffer(256, false, cap);
+        }
+        long address = heap.allocateBuffer(256, false, cap);
+        assertEquals(addresses[0] + blockSize, address);
+        /* A slot freed in a full slab is reused first. */
+        heap.free(addresses[3]);
+        assertEquals(addresses[3], heap.allocateBuffer(256, false, cap));
+        heap.free(addresses[5]);
+        heap.free(addresses[7]);
+        assertEquals(addresses[7], heap.allocateBuffer(200, false, cap));
+        /* The newer slab is no longer the active one, so it's recycled once it's
+           completely free. */
+        heap.free(address);
+        assertEquals(blockSize, heap.getPooledBytes());
+        assertEquals(addresses[5], heap.allocateBuffer(256, false, cap));
+    }
+
+    @Test
+    public void testManagedHeapLocalFreeInFullSlab() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, Long.MAX_VALUE, true);
+        int slots = blockSize / 256;
+        long[] addresses = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            addresses[i] = heap.allocateBuffer(256, false, cap);
+        }
+        long address = heap.allocateBuffer(256, false, cap);
+        /* A local free in the full slab hands it back to its size class, so
+           the slot is reused before the rest of the newer slab. */
+        heap.attemptFree(addresses[2]);
+        assertEquals(addresses[2], heap.allocateBuffer(256, false, cap));
+        assertEquals(address + 256, heap.allocateBuffer(256, false, cap));
+    }
 }
@@ -0,0 +1,120 @@
+package eta.runtime.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+public class WorkStealingDequeTest {
+
+    WorkStealingDeque<Integer> deque;
+
+    @Before
+    public void init() {
+        deque = new WorkStealingDeque<Integer>(4);
+    }
+
+    @Test
+    public void testDequeCapacity() {
+        assertEquals(4, deque.capacity());
+        assertEquals(8, new WorkStealingDeque<Integer>(5).capacity());
+        assertEquals(1, new WorkStealingDeque<Integer>(1).capacity());
+    }
+
+    @Test
+    public void testDequeEmpty() {
+        assertTrue(deque.isEmpty());
+        assertNull(deque.pop());
+        assertNull(deque.steal());
+        assertEquals(0, deque.size());
+    }
+
+    @Test
+    public void testDequePopIsLIFO() {
+        deque.push(1);
+        deque.push(2);
+        deque.push(3);
+        assertEquals(3, deque.size());
+        assertEquals(3, (int) deque.pop());
+        assertEquals(2, (int) deque.pop());
+        assertEquals(1, (int) deque.pop());
+        assertNull(deque.pop());
+    }
+
+    @Test
+    public void testDequeStealIsFIFO() {
+        deque.push(1);
+        deque.push(2);
+        deque.push(3);
+        assertEquals(1, (int) deque.steal());
+        assertEquals(2, (int) deque.steal());
+        assertEquals(3, (int) deque.pop());
+        assertNull(deque.steal());
+    }
+
+    @Test
+    public void testDequeOverflow() {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(deque.push(i));
+        }
+        assertFalse(deque.push(4));
+        assertEquals(0, (int) deque.steal());
+        assertTrue(deque.push(4));
+        for (int i = 4; i > 0; i--) {
+            assertEquals(i, (int) deque.pop());
+        }
+        assertTrue(deque.isEmpty());
+    }
+
+    /* Every element must be taken exactly once, either by the owner or by one
+       of the thieves. */
+    @Test(timeout = 10000)
+    public void testDequeConcurrentSteal() throws InterruptedException {
+        final int limit = 100000;
+        final WorkStealingDeque<Integer> deque = new WorkStealingDeque<Integer>(64);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(limit);
+        final AtomicInteger taken = new AtomicInteger();
+        Thread[] thieves = new Thread[3];
+        for (int i = 0; i < thieves.length; i++) {
+            thieves[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        while (taken.get() < limit) {
+                            Integer e = deque.steal();
+                            if (e != null) {
+                                seen.incrementAndGet(e);
+                                taken.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+            thieves[i].start();
+        }
+        for (int i = 0; i < limit; i++) {
+            while (!deque.push(i)) {
+                Integer e = deque.pop();
+                if (e != null) {
+                    seen.incrementAndGet(e);
+                    taken.incrementAndGet();
+                }
+            }
+        }
+        Integer e;
+        while ((e = deque.pop()) != null) {
+            seen.incrementAndGet(e);
+            taken.incrementAndGet();
+        }
+        for (Thread thief: thieves) {
+            thief.join();
+        }
+        assertEquals(limit, taken.get());
+        for (int i = 0; i < limit; i++) {
+            assertEquals(1, seen.get(i));
+        }
+    }
+}